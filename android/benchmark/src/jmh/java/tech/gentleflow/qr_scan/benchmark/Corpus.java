@@ -0,0 +1,194 @@
+package tech.gentleflow.qr_scan.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.oned.Code128Writer;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic scenes rendered on the fly, so no binary corpus has to be checked in. Every scene
+ * is deterministic: a lit gradient background with sensor noise and the codes drawn on top.
+ */
+public final class Corpus {
+
+    public enum Scene {
+        /**
+         * One sharp QR code.
+         */
+        CLEAN,
+        /**
+         * One QR code seen slightly out of focus.
+         */
+        BLURRED,
+        /**
+         * One light QR code on a dark background.
+         */
+        INVERTED,
+        /**
+         * Texture without any code, the common case while the user is still aiming.
+         */
+        NO_CODE,
+        /**
+         * Two QR codes and a Code 128 barcode.
+         */
+        MULTIPLE
+    }
+
+    /**
+     * Preview size of a typical mid range device.
+     */
+    public static final int FRAME_WIDTH = 640;
+    public static final int FRAME_HEIGHT = 480;
+
+    /**
+     * Size of a gallery image once sampled down for decoding.
+     */
+    public static final int IMAGE_WIDTH = 800;
+    public static final int IMAGE_HEIGHT = 600;
+
+    static final String PAYLOAD = "https://github.com/Gentleflow/qr_scan?bench=1";
+
+    private Corpus() {
+    }
+
+    /**
+     * @return an NV21 frame: the luminance plane followed by neutral interleaved chroma
+     */
+    public static byte[] nv21Frame(Scene scene) {
+        byte[] luminances = luminances(scene, FRAME_WIDTH, FRAME_HEIGHT);
+        byte[] frame = new byte[FRAME_WIDTH * FRAME_HEIGHT * 3 / 2];
+        System.arraycopy(luminances, 0, frame, 0, luminances.length);
+        Arrays.fill(frame, luminances.length, frame.length, (byte) 128);
+        return frame;
+    }
+
+    /**
+     * @return gray ARGB pixels, as read from a decoded bitmap
+     */
+    public static int[] argbImage(Scene scene) {
+        byte[] luminances = luminances(scene, IMAGE_WIDTH, IMAGE_HEIGHT);
+        int[] pixels = new int[luminances.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int l = luminances[i] & 0xff;
+            pixels[i] = 0xff000000 | l << 16 | l << 8 | l;
+        }
+        return pixels;
+    }
+
+    public static byte[] luminances(Scene scene, int width, int height) {
+        byte[] plane = new byte[width * height];
+        Random random = new Random(scene.ordinal());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int lit = 170 + 40 * x / width - 20 * y / height;
+                plane[y * width + x] = (byte) clamp(lit + random.nextInt(17) - 8);
+            }
+        }
+        int size = height * 3 / 5;
+        switch (scene) {
+            case CLEAN:
+                drawQrCode(plane, width, PAYLOAD, (width - size) / 2, (height - size) / 2, size);
+                break;
+            case BLURRED:
+                drawQrCode(plane, width, PAYLOAD, (width - size) / 2, (height - size) / 2, size);
+                boxBlur(plane, width, height, 2);
+                break;
+            case INVERTED:
+                drawQrCode(plane, width, PAYLOAD, (width - size) / 2, (height - size) / 2, size);
+                for (int i = 0; i < plane.length; i++) {
+                    plane[i] = (byte) (255 - (plane[i] & 0xff));
+                }
+                break;
+            case NO_CODE:
+                drawTexture(plane, width, height, random);
+                break;
+            case MULTIPLE:
+                int small = height * 2 / 5;
+                drawQrCode(plane, width, PAYLOAD + "&n=1", width / 20, height / 10, small);
+                drawQrCode(plane, width, PAYLOAD + "&n=2", width / 20 + small + width / 20,
+                        height / 10, small);
+                drawMatrix(plane, width, encode(new Code128Writer(), "QRSCAN-0001",
+                        BarcodeFormat.CODE_128, width * 2 / 5, height / 6),
+                        width / 2, height * 7 / 10);
+                break;
+            default:
+                break;
+        }
+        return plane;
+    }
+
+    private static void drawQrCode(byte[] plane, int width, String text, int left, int top,
+                                   int size) {
+        drawMatrix(plane, width, encode(new QRCodeWriter(), text, BarcodeFormat.QR_CODE, size,
+                size), left, top);
+    }
+
+    private static BitMatrix encode(com.google.zxing.Writer writer, String text,
+                                    BarcodeFormat format, int width, int height) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 2);
+        try {
+            return writer.encode(text, format, width, height, hints);
+        } catch (WriterException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void drawMatrix(byte[] plane, int width, BitMatrix matrix, int left, int top) {
+        for (int y = 0; y < matrix.getHeight(); y++) {
+            for (int x = 0; x < matrix.getWidth(); x++) {
+                int index = (top + y) * width + left + x;
+                // Ink keeps a little of the background noise
+                int background = plane[index] & 0xff;
+                plane[index] = (byte) (matrix.get(x, y) ? 25 + background / 10 : clamp(background + 40));
+            }
+        }
+    }
+
+    private static void drawTexture(byte[] plane, int width, int height, Random random) {
+        for (int i = 0; i < 40; i++) {
+            int w = 10 + random.nextInt(width / 6);
+            int h = 10 + random.nextInt(height / 6);
+            int left = random.nextInt(width - w);
+            int top = random.nextInt(height - h);
+            int shade = random.nextInt(200);
+            for (int y = top; y < top + h; y++) {
+                for (int x = left; x < left + w; x++) {
+                    plane[y * width + x] = (byte) shade;
+                }
+            }
+        }
+    }
+
+    private static void boxBlur(byte[] plane, int width, int height, int radius) {
+        byte[] source = plane.clone();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        int sx = x + dx;
+                        int sy = y + dy;
+                        if (sx >= 0 && sx < width && sy >= 0 && sy < height) {
+                            sum += source[sy * width + sx] & 0xff;
+                            count++;
+                        }
+                    }
+                }
+                plane[y * width + x] = (byte) (sum / count);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,135 @@
+package tech.gentleflow.qr_scan.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import tech.gentleflow.qr_scan.decode.DecodeContext;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
+import tech.gentleflow.qr_scan.decode.PlaneLuminanceSource;
+import tech.gentleflow.qr_scan.decode.SubsampledLuminanceSource;
+
+/**
+ * One preview frame through the live path of QRCodeReaderView: a luminance source over the
+ * NV21 frame, then the binarizer and reader passes of {@link DecodeContext}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecodeBenchmark {
+
+    @Param({"CLEAN", "BLURRED", "INVERTED", "NO_CODE", "MULTIPLE"})
+    public Corpus.Scene scene;
+
+    @Param({"FAST", "NORMAL", "THOROUGH"})
+    public DecodeOptions.Effort effort;
+
+    /**
+     * ALL looks for every format, QR_CODE only runs the QR reader.
+     */
+    @Param({"ALL", "QR_CODE"})
+    public String formats;
+
+    /**
+     * Row padding of the Y plane of a camera image, as many devices align rows to 64 bytes
+     */
+    private static final int ROW_PADDING = 64;
+
+    private byte[] frame;
+    private ByteBuffer plane;
+    private DecodeContext decodeContext;
+    private DecodeContext multipleDecodeContext;
+    private MultiFormatReader stockReader;
+
+    @Setup
+    public void setUp() {
+        frame = Corpus.nv21Frame(scene);
+        int rowStride = Corpus.FRAME_WIDTH + ROW_PADDING;
+        plane = ByteBuffer.allocateDirect(rowStride * Corpus.FRAME_HEIGHT);
+        for (int y = 0; y < Corpus.FRAME_HEIGHT; y++) {
+            plane.position(y * rowStride);
+            plane.put(frame, y * Corpus.FRAME_WIDTH, Corpus.FRAME_WIDTH);
+        }
+        plane.clear();
+        DecodeOptions options = new DecodeOptions("ALL".equals(formats)
+                ? EnumSet.allOf(BarcodeFormat.class) : EnumSet.of(BarcodeFormat.QR_CODE), effort);
+        decodeContext = new DecodeContext(options);
+        multipleDecodeContext = new DecodeContext(options.withMultiple(true));
+        stockReader = new MultiFormatReader();
+        stockReader.setHints(options.getHints());
+    }
+
+    @Benchmark
+    public Result decode() {
+        return decodeContext.decode(source());
+    }
+
+    @Benchmark
+    public Result[] decodeMultiple() {
+        return multipleDecodeContext.decodeMultiple(source());
+    }
+
+    /**
+     * The Y plane of a Camera2 image read in place, with padded rows in a direct buffer.
+     */
+    @Benchmark
+    public Result decodePlane() {
+        return decodeContext.decode(new PlaneLuminanceSource(plane,
+                Corpus.FRAME_WIDTH + ROW_PADDING, Corpus.FRAME_WIDTH, Corpus.FRAME_HEIGHT, 0, 0,
+                Corpus.FRAME_WIDTH, Corpus.FRAME_HEIGHT, 1));
+    }
+
+    /**
+     * The coarse level of pyramid decoding, the frame at half resolution.
+     */
+    @Benchmark
+    public Result decodeCoarse() {
+        return decodeContext.decode(new SubsampledLuminanceSource(frame, Corpus.FRAME_WIDTH,
+                Corpus.FRAME_HEIGHT, 0, 0, Corpus.FRAME_WIDTH, Corpus.FRAME_HEIGHT, 2));
+    }
+
+    /**
+     * Stock ZXing with a new binarizer per frame, as a baseline for the reused scratch memory.
+     */
+    @Benchmark
+    public Result stockZxing() {
+        PlanarYUVLuminanceSource source = source();
+        Result result = stockDecode(new BinaryBitmap(new HybridBinarizer(source)));
+        if (result == null && effort != DecodeOptions.Effort.FAST) {
+            result = stockDecode(new BinaryBitmap(new HybridBinarizer(source.invert())));
+        }
+        return result;
+    }
+
+    private Result stockDecode(BinaryBitmap bitmap) {
+        try {
+            return stockReader.decodeWithState(bitmap);
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            stockReader.reset();
+        }
+    }
+
+    private PlanarYUVLuminanceSource source() {
+        return new PlanarYUVLuminanceSource(frame, Corpus.FRAME_WIDTH, Corpus.FRAME_HEIGHT, 0, 0,
+                Corpus.FRAME_WIDTH, Corpus.FRAME_HEIGHT, false);
+    }
+}
@@ -0,0 +1,76 @@
+package tech.gentleflow.qr_scan.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.Result;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import tech.gentleflow.qr_scan.decode.DecodeContext;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
+import tech.gentleflow.qr_scan.decode.ParallelDecoder;
+
+/**
+ * One gallery image through the path of QRCodeDecoder: ARGB pixels to luminance, then every
+ * pass of the thorough effort, sequentially or raced on all cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ImageDecodeBenchmark {
+
+    @Param({"CLEAN", "BLURRED", "INVERTED", "NO_CODE", "MULTIPLE"})
+    public Corpus.Scene scene;
+
+    private final DecodeOptions options =
+            new DecodeOptions(EnumSet.allOf(BarcodeFormat.class), DecodeOptions.Effort.THOROUGH);
+
+    private int[] pixels;
+    private DecodeContext decodeContext;
+    private DecodeContext multipleDecodeContext;
+    private ParallelDecoder parallelDecoder;
+
+    @Setup
+    public void setUp() {
+        pixels = Corpus.argbImage(scene);
+        decodeContext = new DecodeContext(options);
+        multipleDecodeContext = new DecodeContext(options.withMultiple(true));
+        parallelDecoder = new ParallelDecoder(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        parallelDecoder.shutdown();
+    }
+
+    @Benchmark
+    public Result decode() {
+        return decodeContext.decode(source());
+    }
+
+    @Benchmark
+    public Result[] decodeMultiple() {
+        return multipleDecodeContext.decodeMultiple(source());
+    }
+
+    @Benchmark
+    public Result decodeParallel() throws InterruptedException {
+        return parallelDecoder.decode(source().getMatrix(), Corpus.IMAGE_WIDTH,
+                Corpus.IMAGE_HEIGHT, options);
+    }
+
+    private RGBLuminanceSource source() {
+        return new RGBLuminanceSource(Corpus.IMAGE_WIDTH, Corpus.IMAGE_HEIGHT, pixels);
+    }
+}
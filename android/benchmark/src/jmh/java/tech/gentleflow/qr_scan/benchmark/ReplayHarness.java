@@ -0,0 +1,144 @@
+package tech.gentleflow.qr_scan.benchmark;
+
+import com.google.zxing.Result;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tech.gentleflow.qr_scan.decode.DecodeMetrics;
+import tech.gentleflow.qr_scan.decode.FramePipeline;
+import tech.gentleflow.qr_scan.frame.RecordedFrameSource;
+
+/**
+ * Plays a recording through the live {@link FramePipeline} in real time and reports time to
+ * first decode, frame drop rate and decode throughput.
+ * <p>
+ * Without arguments a recording is synthesized: {@code emptyFrames} frames without a code, then
+ * the code comes into view. With arguments, {@code file width height [fps]} replays an NV21
+ * recording, see {@link RecordedFrameSource}.
+ * <pre>
+ *   gradle -p android/benchmark replay
+ *   gradle -p android/benchmark replay --args="clip.nv21 640 480 30"
+ * </pre>
+ */
+public final class ReplayHarness {
+
+    private static final double DEFAULT_FPS = 30;
+    private static final int EMPTY_FRAMES = 30;
+    private static final int CODE_FRAMES = 90;
+    private static final int BUFFER_COUNT = 3;
+
+    private ReplayHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File file;
+        int width;
+        int height;
+        int codeFrom;
+        if (args.length >= 3) {
+            file = new File(args[0]);
+            width = Integer.parseInt(args[1]);
+            height = Integer.parseInt(args[2]);
+            codeFrom = 0;
+        } else {
+            file = File.createTempFile("qr_scan_replay", ".nv21");
+            file.deleteOnExit();
+            width = Corpus.FRAME_WIDTH;
+            height = Corpus.FRAME_HEIGHT;
+            codeFrom = EMPTY_FRAMES;
+            writeRecording(file);
+        }
+        double fps = args.length >= 4 ? Double.parseDouble(args[3]) : DEFAULT_FPS;
+
+        Report report = replay(file, width, height, fps, codeFrom);
+        System.out.println(report);
+    }
+
+    /**
+     * Plays the recording once, blocking until it ended and the pipeline went idle.
+     *
+     * @param codeFrom index of the first frame showing a code, time to first decode is measured
+     *                 from its due time
+     */
+    public static Report replay(File file, int width, int height, double fps, int codeFrom)
+            throws InterruptedException {
+        final AtomicLong firstResultAt = new AtomicLong();
+        final AtomicLong resultCount = new AtomicLong();
+        FramePipeline pipeline = new FramePipeline();
+        pipeline.setListener(new FramePipeline.Listener() {
+            @Override
+            public void onResults(Result[] results) {
+                firstResultAt.compareAndSet(0, System.nanoTime());
+                resultCount.addAndGet(results.length);
+            }
+        });
+        RecordedFrameSource source =
+                new RecordedFrameSource(file, width, height, fps, BUFFER_COUNT, false);
+        source.setFrameCallback(pipeline);
+
+        pipeline.start();
+        pipeline.getGovernor().reset(System.nanoTime());
+        long start = System.nanoTime();
+        source.start();
+        source.awaitFinished(1, TimeUnit.HOURS);
+        long end = System.nanoTime();
+        pipeline.stop();
+
+        Report report = new Report();
+        long codeDueAt = start + (long) (codeFrom * TimeUnit.SECONDS.toNanos(1) / fps);
+        report.timeToFirstDecodeMillis = firstResultAt.get() == 0 ? -1
+                : TimeUnit.NANOSECONDS.toMillis(firstResultAt.get() - codeDueAt);
+        DecodeMetrics metrics = pipeline.getMetrics();
+        report.framesPlayed = source.getDeliveredCount() + source.getDroppedCount();
+        report.framesDropped = source.getDroppedCount()
+                + metrics.get(DecodeMetrics.Counter.FRAMES_SKIPPED)
+                + metrics.get(DecodeMetrics.Counter.FRAMES_REPLACED);
+        report.framesDecoded = metrics.get(DecodeMetrics.Counter.FRAMES_DECODED);
+        report.results = resultCount.get();
+        report.seconds = (end - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        report.metrics = metrics.toString();
+        return report;
+    }
+
+    private static void writeRecording(File file) throws IOException {
+        byte[] empty = Corpus.nv21Frame(Corpus.Scene.NO_CODE);
+        byte[] code = Corpus.nv21Frame(Corpus.Scene.CLEAN);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < EMPTY_FRAMES; i++) {
+                out.write(empty);
+            }
+            for (int i = 0; i < CODE_FRAMES; i++) {
+                out.write(code);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static final class Report {
+        long timeToFirstDecodeMillis;
+        long framesPlayed;
+        long framesDropped;
+        long framesDecoded;
+        long results;
+        double seconds;
+        String metrics;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "time to first decode: %d ms%n"
+                            + "frames played: %d, dropped: %d (%.1f%%), decoded: %d (%.1f/s)%n"
+                            + "results: %d%n%s",
+                    timeToFirstDecodeMillis, framesPlayed, framesDropped,
+                    framesPlayed == 0 ? 0 : 100.0 * framesDropped / framesPlayed, framesDecoded,
+                    framesDecoded / seconds, results, metrics);
+        }
+    }
+}
@@ -32,114 +32,136 @@
 
 package com.google.zxing.client.android.camera;
 
-import android.annotation.SuppressLint;
 import android.hardware.Camera;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Runs focus cycles with {@link Camera#autoFocus}. Cycles are scheduled on the looper of the
+ * thread creating the manager, the camera thread, so there is no thread of its own.
+ * <p>
+ * In the auto and macro focus modes a cycle runs when asked for with {@link #start()}, e.g. when
+ * the decoder sees a code it cannot read, and after the autofocus interval without any.
+ * In the continuous modes the camera focuses on its own and a cycle is only run when asked for:
+ * it locks the focus, which is released once it is done so continuous focusing resumes.
+ */
 final class AutoFocusManager implements Camera.AutoFocusCallback {
 
     private static final String TAG = AutoFocusManager.class.getSimpleName();
 
     protected static final long DEFAULT_AUTO_FOCUS_INTERVAL_MS = 5000L;
     private static final Collection<String> FOCUS_MODES_CALLING_AF;
+    private static final Collection<String> FOCUS_MODES_CONTINUOUS;
     private long autofocusIntervalMs = DEFAULT_AUTO_FOCUS_INTERVAL_MS;
 
     static {
         FOCUS_MODES_CALLING_AF = new ArrayList<>(2);
         FOCUS_MODES_CALLING_AF.add(Camera.Parameters.FOCUS_MODE_AUTO);
         FOCUS_MODES_CALLING_AF.add(Camera.Parameters.FOCUS_MODE_MACRO);
+        FOCUS_MODES_CONTINUOUS = new ArrayList<>(2);
+        FOCUS_MODES_CONTINUOUS.add(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+        FOCUS_MODES_CONTINUOUS.add(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
     }
 
     private boolean stopped;
     private boolean focusing;
     private final boolean useAutoFocus;
+    private final boolean continuous;
     private final Camera camera;
-    private AsyncTask<?, ?, ?> outstandingTask;
+    private final Handler handler;
 
-    AutoFocusManager(Camera camera) {
+    /**
+     * @param currentFocusMode the focus mode the camera runs with
+     */
+    AutoFocusManager(Camera camera, String currentFocusMode) {
         this.camera = camera;
-        String currentFocusMode = camera.getParameters().getFocusMode();
         useAutoFocus = FOCUS_MODES_CALLING_AF.contains(currentFocusMode);
-        start();
+        continuous = FOCUS_MODES_CONTINUOUS.contains(currentFocusMode);
+        Looper looper = Looper.myLooper();
+        handler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        if (useAutoFocus) {
+            start();
+        }
     }
 
     @Override
     public synchronized void onAutoFocus(boolean success, Camera theCamera) {
         focusing = false;
+        if (continuous && !stopped) {
+            // Releases the lock taken by autoFocus(), the camera goes back to focusing itself
+            try {
+                camera.cancelAutoFocus();
+            } catch (RuntimeException re) {
+                Log.w(TAG, "Unexpected exception while resuming continuous focus", re);
+            }
+        }
         autoFocusAgainLater();
     }
 
-    public void setAutofocusInterval(long autofocusIntervalMs) {
+    public synchronized void setAutofocusInterval(long autofocusIntervalMs) {
         if (autofocusIntervalMs <= 0) {
             throw new IllegalArgumentException("AutoFocusInterval must be greater than 0.");
         }
         this.autofocusIntervalMs = autofocusIntervalMs;
+        if (!focusing) {
+            autoFocusAgainLater();
+        }
     }
 
-    @SuppressLint("NewApi")
     private synchronized void autoFocusAgainLater() {
-        if (!stopped && outstandingTask == null) {
-            AutoFocusTask newTask = new AutoFocusTask();
-            try {
-                newTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                outstandingTask = newTask;
-            } catch (RejectedExecutionException ree) {
-                ree.printStackTrace();
-            }
+        handler.removeCallbacks(autoFocusRunnable);
+        if (!stopped && useAutoFocus) {
+            handler.postDelayed(autoFocusRunnable, autofocusIntervalMs);
         }
     }
 
+    /**
+     * Runs a focus cycle now, unless one is running.
+     */
     synchronized void start() {
-        if (useAutoFocus) {
-            outstandingTask = null;
-            if (!stopped && !focusing) {
-                try {
-                    camera.autoFocus(this);
-                    focusing = true;
-                } catch (RuntimeException re) {
-                    re.printStackTrace();
-                    autoFocusAgainLater();
-                }
+        if ((useAutoFocus || continuous) && !stopped && !focusing) {
+            handler.removeCallbacks(autoFocusRunnable);
+            try {
+                camera.autoFocus(this);
+                focusing = true;
+            } catch (RuntimeException re) {
+                Log.w(TAG, "Unexpected exception while focusing", re);
+                autoFocusAgainLater();
             }
         }
     }
 
-    private synchronized void cancelOutstandingTask() {
-        if (outstandingTask != null) {
-            if (outstandingTask.getStatus() != AsyncTask.Status.FINISHED) {
-                outstandingTask.cancel(true);
-            }
-            outstandingTask = null;
+    /**
+     * Focuses on a new focus area: the auto and macro modes run a cycle, the continuous modes
+     * move to it on their own.
+     */
+    synchronized void onFocusAreaChanged() {
+        if (useAutoFocus) {
+            start();
         }
     }
 
     synchronized void stop() {
         stopped = true;
-        if (useAutoFocus) {
-            cancelOutstandingTask();
+        handler.removeCallbacks(autoFocusRunnable);
+        if (useAutoFocus || continuous) {
             // Doesn't hurt to call this even if not focusing
             try {
                 camera.cancelAutoFocus();
             } catch (RuntimeException re) {
-                re.printStackTrace();
+                Log.w(TAG, "Unexpected exception while cancelling focusing", re);
             }
         }
     }
 
-    private final class AutoFocusTask extends AsyncTask<Object, Object, Object> {
+    private final Runnable autoFocusRunnable = new Runnable() {
         @Override
-        protected Object doInBackground(Object... voids) {
-            try {
-                Thread.sleep(autofocusIntervalMs);
-            } catch (InterruptedException e) {
-                // continue
-            }
+        public void run() {
             start();
-            return null;
         }
-    }
+    };
 }
@@ -0,0 +1,139 @@
+package com.google.zxing.client.android.camera;
+
+import android.hardware.Camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a camera supports, read once from its {@link Camera.Parameters} and kept for the life of
+ * the process: what a camera supports does not change, while every
+ * {@link Camera#getParameters()} is a round trip to the camera service that parses the whole
+ * parameter string. Immutable, snapshots are cached per camera id.
+ */
+final class CameraCapabilities {
+
+    private static final Map<Integer, CameraCapabilities> CACHE = new HashMap<>();
+
+    private final List<String> focusModes;
+    private final List<String> flashModes;
+    private final int minExposureCompensation;
+    private final int maxExposureCompensation;
+    private final float exposureCompensationStep;
+    private final int[] previewWidths;
+    private final int[] previewHeights;
+    private final List<int[]> fpsRanges;
+    private final int defaultPreviewWidth;
+    private final int defaultPreviewHeight;
+    private final int maxNumFocusAreas;
+    private final int maxNumMeteringAreas;
+
+    private CameraCapabilities(Camera.Parameters parameters) {
+        focusModes = unmodifiable(parameters.getSupportedFocusModes());
+        flashModes = unmodifiable(parameters.getSupportedFlashModes());
+        minExposureCompensation = parameters.getMinExposureCompensation();
+        maxExposureCompensation = parameters.getMaxExposureCompensation();
+        exposureCompensationStep = parameters.getExposureCompensationStep();
+        List<Camera.Size> sizes = parameters.getSupportedPreviewSizes();
+        int count = sizes == null ? 0 : sizes.size();
+        previewWidths = new int[count];
+        previewHeights = new int[count];
+        for (int i = 0; i < count; i++) {
+            previewWidths[i] = sizes.get(i).width;
+            previewHeights[i] = sizes.get(i).height;
+        }
+        Camera.Size defaultSize = parameters.getPreviewSize();
+        defaultPreviewWidth = defaultSize == null ? 0 : defaultSize.width;
+        defaultPreviewHeight = defaultSize == null ? 0 : defaultSize.height;
+        List<int[]> ranges = parameters.getSupportedPreviewFpsRange();
+        List<int[]> copies = new ArrayList<>();
+        if (ranges != null) {
+            for (int[] range : ranges) {
+                copies.add(range.clone());
+            }
+        }
+        fpsRanges = Collections.unmodifiableList(copies);
+        maxNumFocusAreas = parameters.getMaxNumFocusAreas();
+        maxNumMeteringAreas = parameters.getMaxNumMeteringAreas();
+    }
+
+    /**
+     * @param camera the open camera, its parameters are only read when it has no snapshot yet
+     * @return the snapshot of the camera
+     */
+    static CameraCapabilities of(int cameraId, Camera camera) {
+        synchronized (CACHE) {
+            CameraCapabilities capabilities = CACHE.get(cameraId);
+            if (capabilities == null) {
+                capabilities = new CameraCapabilities(camera.getParameters());
+                CACHE.put(cameraId, capabilities);
+            }
+            return capabilities;
+        }
+    }
+
+    private static List<String> unmodifiable(List<String> values) {
+        return values == null ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    List<String> getFocusModes() {
+        return focusModes;
+    }
+
+    List<String> getFlashModes() {
+        return flashModes;
+    }
+
+    int getMinExposureCompensation() {
+        return minExposureCompensation;
+    }
+
+    int getMaxExposureCompensation() {
+        return maxExposureCompensation;
+    }
+
+    float getExposureCompensationStep() {
+        return exposureCompensationStep;
+    }
+
+    /**
+     * @return widths of the supported preview sizes, do not modify
+     */
+    int[] getPreviewWidths() {
+        return previewWidths;
+    }
+
+    /**
+     * @return heights of the supported preview sizes, in the order of the widths, do not modify
+     */
+    int[] getPreviewHeights() {
+        return previewHeights;
+    }
+
+    int getDefaultPreviewWidth() {
+        return defaultPreviewWidth;
+    }
+
+    int getDefaultPreviewHeight() {
+        return defaultPreviewHeight;
+    }
+
+    /**
+     * @return supported preview frame rate ranges in 1/1000 fps, do not modify the arrays
+     */
+    List<int[]> getFpsRanges() {
+        return fpsRanges;
+    }
+
+    int getMaxNumFocusAreas() {
+        return maxNumFocusAreas;
+    }
+
+    int getMaxNumMeteringAreas() {
+        return maxNumMeteringAreas;
+    }
+}
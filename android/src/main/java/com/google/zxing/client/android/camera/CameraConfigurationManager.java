@@ -17,9 +17,10 @@
 package com.google.zxing.client.android.camera;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.Camera;
-import android.util.Log;
 import android.view.Display;
 import android.view.Surface;
 import android.view.WindowManager;
@@ -28,12 +29,15 @@ import android.view.WindowManager;
 import com.google.zxing.client.android.camera.open.CameraFacing;
 import com.google.zxing.client.android.camera.open.OpenCamera;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
+import tech.gentleflow.qr_scan.camera.CameraProfile;
+import tech.gentleflow.qr_scan.camera.CameraProfileStore;
+import tech.gentleflow.qr_scan.camera.FocusAreas;
+import tech.gentleflow.qr_scan.camera.PreviewSizePolicy;
+
 /**
  * A class which deals with reading, parsing, and setting the google.zxing.client.android.android.com.google.zxing.client.android.camera parameters which are used to
  * configure the google.zxing.client.android.android.com.google.zxing.client.android.camera hardware.
@@ -49,7 +53,12 @@ final class CameraConfigurationManager {
     private static final int MAX_PREVIEW_PIXELS = 1280 * 720;
     private static final float MAX_EXPOSURE_COMPENSATION = 1.5f;
     private static final float MIN_EXPOSURE_COMPENSATION = 0.0f;
+    // Preview frame rates are in 1/1000 fps
+    private static final int TARGET_FPS = 30000;
+    // Profiles of this API, apart from the Camera2 ones
+    private static final String BACKEND = "legacy";
     private final Context context;
+    private final CameraProfileStore profileStore;
 
     private Point resolution;
     private Point cameraResolution;
@@ -57,13 +66,23 @@ final class CameraConfigurationManager {
     private Point previewSizeOnScreen;
     private int cwRotationFromDisplayToCamera;
     private int cwNeededRotation;
+    private String cameraId;
+    // What was applied last, or the saved profile until it is applied
+    private CameraProfile profile;
+    private CameraCapabilities capabilities;
+    // The parameters the camera runs with, changed and applied in one call
+    private Camera.Parameters parameters;
+    private boolean torchEnabled;
+    // In the -1000..1000 coordinates of Camera.Area, null for the whole field of view
+    private Rect focusArea;
 
     CameraConfigurationManager(Context context) {
         this.context = context;
+        this.profileStore = new CameraProfileStore(context);
     }
 
     void initFromCameraParameters(OpenCamera camera, int width, int height) {
-        Camera.Parameters parameters = camera.getCamera().getParameters();
+        capabilities = CameraCapabilities.of(camera.getIndex(), camera.getCamera());
         WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         Display display = manager.getDefaultDisplay();
 
@@ -107,8 +126,16 @@ final class CameraConfigurationManager {
         }
 
         resolution = new Point(width, height);
-        cameraResolution = findBestPreviewSizeValue(parameters, resolution);
-        bestPreviewSize = findBestPreviewSizeValue(parameters, resolution);
+        cameraId = String.valueOf(camera.getIndex());
+        // A saved profile skips going through the supported sizes
+        profile = profileStore.load(BACKEND, cameraId, width, height);
+        if (profile != null) {
+            bestPreviewSize = new Point(profile.getWidth(), profile.getHeight());
+        } else {
+            bestPreviewSize = findBestPreviewSizeValue(capabilities, resolution);
+        }
+        // Frames have the size the camera settles on
+        cameraResolution = bestPreviewSize;
 
         boolean isScreenPortrait = resolution.x < resolution.y;
         boolean isPreviewSizePortrait = bestPreviewSize.x < bestPreviewSize.y;
@@ -129,22 +156,31 @@ final class CameraConfigurationManager {
             return;
         }
 
-
-        if (safeMode) {
-        }
-
+        // Continuous focus settles faster than auto focus cycles, which stay as fallback.
         // Maybe selected auto-focus but not available, so fall through here:
         String focusMode = null;
-        if (!safeMode) {
-            List<String> supportedFocusModes = parameters.getSupportedFocusModes();
+        int[] fpsRange = null;
+        if (!safeMode && profile != null) {
+            focusMode = profile.getFocusMode();
+            if (profile.hasFpsRange()) {
+                fpsRange = new int[]{profile.getMinFps(), profile.getMaxFps()};
+            }
+        } else if (!safeMode) {
             focusMode =
                     findSettableValue("focus mode",
-                            supportedFocusModes,
+                            capabilities.getFocusModes(),
+                            Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
+                            Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
                             Camera.Parameters.FOCUS_MODE_AUTO);
+            fpsRange = findBestFpsRange(capabilities);
         }
         if (focusMode != null) {
             parameters.setFocusMode(focusMode);
         }
+        if (fpsRange != null) {
+            parameters.setPreviewFpsRange(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        }
 
         parameters.setPreviewSize(bestPreviewSize.x, bestPreviewSize.y);
 
@@ -152,13 +188,47 @@ final class CameraConfigurationManager {
 
         theCamera.setDisplayOrientation(cwRotationFromDisplayToCamera);
 
-        Camera.Parameters afterParameters = theCamera.getParameters();
-        Camera.Size afterSize = afterParameters.getPreviewSize();
-        if (afterSize != null && (bestPreviewSize.x != afterSize.width
-                || bestPreviewSize.y != afterSize.height)) {
-            bestPreviewSize.x = afterSize.width;
-            bestPreviewSize.y = afterSize.height;
+        // A saved profile holds the size the camera settled on before
+        if (safeMode || profile == null) {
+            parameters = theCamera.getParameters();
+            Camera.Size afterSize = parameters.getPreviewSize();
+            if (afterSize != null && (bestPreviewSize.x != afterSize.width
+                    || bestPreviewSize.y != afterSize.height)) {
+                bestPreviewSize.x = afterSize.width;
+                bestPreviewSize.y = afterSize.height;
+            }
+        }
+        this.parameters = parameters;
+        torchEnabled = isTorchMode(parameters.getFlashMode());
+        focusArea = null;
+
+        if (!safeMode) {
+            saveProfile(focusMode, fpsRange);
+        }
+    }
+
+    private void saveProfile(String focusMode, int[] fpsRange) {
+        long nanosPerPixel = profile != null ? profile.getNanosPerPixel()
+                : profileStore.getDecodeCost();
+        CameraProfile applied = new CameraProfile(bestPreviewSize.x, bestPreviewSize.y, focusMode,
+                fpsRange == null ? 0 : fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                fpsRange == null ? 0 : fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX],
+                nanosPerPixel);
+        if (profile == null || !applied.equals(profile)) {
+            profileStore.save(BACKEND, cameraId, resolution.x, resolution.y, applied);
         }
+        profile = applied;
+    }
+
+    /**
+     * Forgets the saved profile after the camera refused the parameters, the next open
+     * negotiates them again.
+     */
+    void forgetProfile() {
+        if (cameraId != null) {
+            profileStore.remove(BACKEND, cameraId, resolution.x, resolution.y);
+        }
+        profile = null;
     }
 
     Point getCameraResolution() {
@@ -171,76 +241,44 @@ final class CameraConfigurationManager {
 
     // All references to Torch are removed from here, methods, variables...
 
-    public Point findBestPreviewSizeValue(Camera.Parameters parameters, Point screenResolution) {
-
-        List<Camera.Size> rawSupportedSizes = parameters.getSupportedPreviewSizes();
-        if (rawSupportedSizes == null) {
-            Camera.Size defaultSize = parameters.getPreviewSize();
-            return new Point(defaultSize.width, defaultSize.height);
+    /**
+     * Picks the preview size with {@link PreviewSizePolicy}, from the decode cost measured on
+     * this device and the aspect ratio of the view. The preview frames are the ones decoded.
+     */
+    Point findBestPreviewSizeValue(CameraCapabilities capabilities, Point screenResolution) {
+
+        int[] widths = capabilities.getPreviewWidths();
+        int[] heights = capabilities.getPreviewHeights();
+        PreviewSizePolicy policy = new PreviewSizePolicy(MIN_PREVIEW_PIXELS, MAX_PREVIEW_PIXELS);
+        policy.setDecodeCost(profileStore.getDecodeCost());
+        int best = policy.choose(widths, heights, screenResolution.x, screenResolution.y);
+        if (best < 0) {
+            return new Point(capabilities.getDefaultPreviewWidth(),
+                    capabilities.getDefaultPreviewHeight());
         }
+        return new Point(widths[best], heights[best]);
+    }
 
-        // Sort by size, descending
-        List<Camera.Size> supportedPreviewSizes = new ArrayList<Camera.Size>(rawSupportedSizes);
-        Collections.sort(supportedPreviewSizes, new Comparator<Camera.Size>() {
-            @Override
-            public int compare(Camera.Size a, Camera.Size b) {
-                int aPixels = a.height * a.width;
-                int bPixels = b.height * b.width;
-                if (bPixels < aPixels) {
-                    return -1;
-                }
-                if (bPixels > aPixels) {
-                    return 1;
-                }
-                return 0;
-            }
-        });
-
-        if (Log.isLoggable(TAG, Log.INFO)) {
-            StringBuilder previewSizesString = new StringBuilder();
-            for (Camera.Size supportedPreviewSize : supportedPreviewSizes) {
-                previewSizesString.append(supportedPreviewSize.width)
-                        .append('x')
-                        .append(supportedPreviewSize.height)
-                        .append(' ');
-            }
-        }
-
-        Point bestSize = null;
-        float screenAspectRatio = (float) screenResolution.x / (float) screenResolution.y;
-
-        float diff = Float.POSITIVE_INFINITY;
-        for (Camera.Size supportedPreviewSize : supportedPreviewSizes) {
-            int realWidth = supportedPreviewSize.width;
-            int realHeight = supportedPreviewSize.height;
-            int pixels = realWidth * realHeight;
-            if (pixels < MIN_PREVIEW_PIXELS || pixels > MAX_PREVIEW_PIXELS) {
+    /**
+     * @return the preview frame rate range with the highest rate up to 30 fps, and the lowest
+     * rate closest to 15 fps, null if the camera lists none
+     */
+    private static int[] findBestFpsRange(CameraCapabilities capabilities) {
+        int[] best = null;
+        for (int[] range : capabilities.getFpsRanges()) {
+            int min = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            if (max > TARGET_FPS) {
                 continue;
             }
-
-            // This code is modified since We're using portrait mode
-            boolean isCandidateLandscape = realWidth > realHeight;
-            int maybeFlippedWidth = isCandidateLandscape ? realHeight : realWidth;
-            int maybeFlippedHeight = isCandidateLandscape ? realWidth : realHeight;
-
-            if (maybeFlippedWidth == screenResolution.x && maybeFlippedHeight == screenResolution.y) {
-                Point exactPoint = new Point(realWidth, realHeight);
-                return exactPoint;
-            }
-            float aspectRatio = (float) maybeFlippedWidth / (float) maybeFlippedHeight;
-            float newDiff = Math.abs(aspectRatio - screenAspectRatio);
-            if (newDiff < diff) {
-                bestSize = new Point(realWidth, realHeight);
-                diff = newDiff;
+            int bestMax = best == null ? 0 : best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            if (best == null || max > bestMax || max == bestMax
+                    && Math.abs(min - TARGET_FPS / 2)
+                    < Math.abs(best[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] - TARGET_FPS / 2)) {
+                best = range;
             }
         }
-
-        if (bestSize == null) {
-            Camera.Size defaultSize = parameters.getPreviewSize();
-            bestSize = new Point(defaultSize.width, defaultSize.height);
-        }
-
-        return bestSize;
+        return best;
     }
 
     private static String findSettableValue(String name,
@@ -256,35 +294,127 @@ final class CameraConfigurationManager {
         return null;
     }
 
-    boolean getTorchState(Camera camera) {
-        if (camera != null) {
-            Camera.Parameters parameters = camera.getParameters();
-            if (parameters != null) {
-                String flashMode = camera.getParameters().getFlashMode();
-                return flashMode != null && (Camera.Parameters.FLASH_MODE_ON.equals(flashMode)
-                        || Camera.Parameters.FLASH_MODE_TORCH.equals(flashMode));
-            }
-        }
-        return false;
+    /**
+     * @return the focus mode the camera runs with
+     */
+    String getFocusMode() {
+        return parameters == null ? null : parameters.getFocusMode();
+    }
+
+    /**
+     * @return the format of the preview frames, an {@link ImageFormat}
+     */
+    int getPreviewFormat() {
+        return parameters == null ? ImageFormat.NV21 : parameters.getPreviewFormat();
+    }
+
+    boolean getTorchState() {
+        return torchEnabled;
     }
 
+    /**
+     * Switches the torch and the exposure compensation that goes with it in one
+     * {@link Camera#setParameters} call, on the parameters the camera already runs with.
+     */
     void setTorchEnabled(Camera camera, boolean enabled) {
-        Camera.Parameters parameters = camera.getParameters();
+        if (parameters == null) {
+            parameters = camera.getParameters();
+        }
         setTorchEnabled(parameters, enabled, false);
-        camera.setParameters(parameters);
+        try {
+            camera.setParameters(parameters);
+        } catch (RuntimeException re) {
+            // Read again next time, the camera kept the parameters it had
+            parameters = null;
+            throw re;
+        }
+        torchEnabled = enabled;
+    }
+
+    /**
+     * Sets the exposure compensation closest to {@code ev} within the range of the camera, in
+     * one {@link Camera#setParameters} call on the parameters the camera already runs with.
+     */
+    void setExposureCompensation(Camera camera, float ev) {
+        float step = capabilities.getExposureCompensationStep();
+        if (step <= 0.0f) {
+            return;
+        }
+        int steps = Math.max(Math.min(Math.round(ev / step),
+                capabilities.getMaxExposureCompensation()),
+                capabilities.getMinExposureCompensation());
+        if (parameters == null) {
+            parameters = camera.getParameters();
+        }
+        if (parameters.getExposureCompensation() != steps) {
+            parameters.setExposureCompensation(steps);
+            try {
+                camera.setParameters(parameters);
+            } catch (RuntimeException re) {
+                parameters = null;
+                throw re;
+            }
+        }
+    }
+
+    /**
+     * Focuses and meters on an area of the preview frames, in one {@link Camera#setParameters}
+     * call on the parameters the camera already runs with.
+     *
+     * @param areaInPreview area in preview coordinates, null for the whole field of view
+     * @return false if the camera takes no areas or already uses this one
+     */
+    boolean setFocusArea(Camera camera, Rect areaInPreview) {
+        int maxFocusAreas = capabilities.getMaxNumFocusAreas();
+        int maxMeteringAreas = capabilities.getMaxNumMeteringAreas();
+        if (maxFocusAreas == 0 && maxMeteringAreas == 0) {
+            return false;
+        }
+        Rect area = areaInPreview == null ? null : FocusAreas.toCameraArea(areaInPreview,
+                cameraResolution.x, cameraResolution.y);
+        if (area == null ? focusArea == null : area.equals(focusArea)) {
+            return false;
+        }
+        if (parameters == null) {
+            parameters = camera.getParameters();
+        }
+        // Null gives the areas back to the driver
+        List<Camera.Area> areas = area == null ? null
+                : Collections.singletonList(new Camera.Area(area, FocusAreas.WEIGHT));
+        if (maxFocusAreas > 0) {
+            parameters.setFocusAreas(areas);
+        }
+        if (maxMeteringAreas > 0) {
+            parameters.setMeteringAreas(areas);
+        }
+        try {
+            camera.setParameters(parameters);
+        } catch (RuntimeException re) {
+            // Read again next time, the camera kept the parameters it had
+            parameters = null;
+            throw re;
+        }
+        focusArea = area;
+        return true;
     }
 
     void setTorchEnabled(Camera.Parameters parameters, boolean enabled, boolean safeMode) {
-        setTorchEnabled(parameters, enabled);
+        setTorchEnabled(parameters, capabilities, enabled);
 
         if (!safeMode) {
-            setBestExposure(parameters, enabled);
+            setBestExposure(parameters, capabilities, enabled);
         }
     }
 
-    public static void setTorchEnabled(Camera.Parameters parameters,
+    private static boolean isTorchMode(String flashMode) {
+        return Camera.Parameters.FLASH_MODE_ON.equals(flashMode)
+                || Camera.Parameters.FLASH_MODE_TORCH.equals(flashMode);
+    }
+
+    static void setTorchEnabled(Camera.Parameters parameters,
+                                CameraCapabilities capabilities,
                                        boolean enabled) {
-        List<String> supportedFlashModes = parameters.getSupportedFlashModes();
+        List<String> supportedFlashModes = capabilities.getFlashModes();
         String flashMode;
         if (enabled) {
             flashMode = findSettableValue("flash mode",
@@ -303,12 +433,13 @@ final class CameraConfigurationManager {
         }
     }
 
-    public static void setBestExposure(Camera.Parameters parameters,
-                                       boolean lightOn) {
+    static void setBestExposure(Camera.Parameters parameters,
+                                CameraCapabilities capabilities,
+                                boolean lightOn) {
 
-        int minExposure = parameters.getMinExposureCompensation();
-        int maxExposure = parameters.getMaxExposureCompensation();
-        float step = parameters.getExposureCompensationStep();
+        int minExposure = capabilities.getMinExposureCompensation();
+        int maxExposure = capabilities.getMaxExposureCompensation();
+        float step = capabilities.getExposureCompensationStep();
         if ((minExposure != 0 || maxExposure != 0) && step > 0.0f) {
             // Set low when light is on
             float targetCompensation = lightOn ? MIN_EXPOSURE_COMPENSATION : MAX_EXPOSURE_COMPENSATION;
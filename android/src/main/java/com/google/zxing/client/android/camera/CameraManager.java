@@ -17,15 +17,23 @@
 package com.google.zxing.client.android.camera;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.Camera;
+import android.util.Log;
 import android.view.SurfaceHolder;
 
-import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.client.android.camera.open.CameraFacing;
 import com.google.zxing.client.android.camera.open.OpenCamera;
 import com.google.zxing.client.android.camera.open.OpenCameraInterface;
 
 import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import tech.gentleflow.qr_scan.camera.CameraBackend;
+import tech.gentleflow.qr_scan.frame.Frame;
 
 
 /**
@@ -35,7 +43,7 @@ import java.io.IOException;
  *
  * @author dswitkin@google.com (Daniel Switkin)
  */
-public final class CameraManager {
+public final class CameraManager implements CameraBackend {
 
     private static final String TAG = CameraManager.class.getSimpleName();
 
@@ -44,14 +52,17 @@ public final class CameraManager {
     private OpenCamera openCamera;
     private AutoFocusManager autoFocusManager;
     private boolean initialized;
+    private boolean configured;
     private boolean previewing;
-    private Camera.PreviewCallback previewCallback;
+    private volatile Camera.PreviewCallback previewCallback;
     private int displayOrientation = 0;
+    private int previewBufferCount = PreviewBufferPool.DEFAULT_BUFFER_COUNT;
+    private volatile PreviewBufferPool previewBufferPool;
+    // One frame per pooled buffer, refilled every time the buffer comes back
+    private final Map<byte[], Frame> frames = new IdentityHashMap<>();
 
     // PreviewCallback references are also removed from original ZXING authors work,
     // since we're using our own interface.
-    // FramingRects references are also removed from original ZXING authors work,
-    // since We're using all view size while detecting QR-Codes.
     private int requestedCameraId = OpenCameraInterface.NO_REQUESTED_CAMERA;
     private long autofocusIntervalInMs = AutoFocusManager.DEFAULT_AUTO_FOCUS_INTERVAL_MS;
 
@@ -60,14 +71,127 @@ public final class CameraManager {
         this.configManager = new CameraConfigurationManager(context);
     }
 
-    public void setPreviewCallback(Camera.PreviewCallback previewCallback) {
+    /**
+     * Delivers the preview frames as a {@link tech.gentleflow.qr_scan.frame.FrameSource},
+     * replacing any preview callback.
+     */
+    @Override
+    public void setFrameCallback(final FrameCallback callback) {
+        setPreviewCallback(callback == null ? null : new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                callback.onFrame(frameFor(data), CameraManager.this);
+            }
+        });
+    }
+
+    private synchronized Frame frameFor(byte[] data) {
+        Frame frame = frames.get(data);
+        if (frame == null) {
+            frame = new Frame();
+            if (previewBufferPool != null) {
+                frames.put(data, frame);
+            }
+        }
+        frame.setData(data, getFrameWidth(), getFrameHeight());
+        return frame;
+    }
+
+    @Override
+    public int getFrameWidth() {
+        Point previewSize = getPreviewSize();
+        return previewSize == null ? 0 : previewSize.x;
+    }
+
+    @Override
+    public int getFrameHeight() {
+        Point previewSize = getPreviewSize();
+        return previewSize == null ? 0 : previewSize.y;
+    }
+
+    @Override
+    public void releaseFrame(Frame frame) {
+        releasePreviewBuffer(frame.getData());
+    }
+
+    @Override
+    public void prepare(int viewWidth, int viewHeight) throws IOException {
+        prepareDriver(viewWidth, viewHeight);
+    }
+
+    @Override
+    public void open(SurfaceHolder holder, int viewWidth, int viewHeight) throws IOException {
+        openDriver(holder, viewWidth, viewHeight);
+    }
+
+    @Override
+    public void close() {
+        closeDriver();
+    }
+
+    @Override
+    public synchronized boolean isFrontFacing() {
+        if (isOpen()) {
+            return openCamera.getFacing() == CameraFacing.FRONT;
+        }
+        return getCameraInfo().facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    @Override
+    public synchronized int getSensorOrientation() {
+        if (isOpen()) {
+            return openCamera.getOrientation();
+        }
+        return getCameraInfo().orientation;
+    }
+
+    private Camera.CameraInfo getCameraInfo() {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(Math.max(requestedCameraId, 0), info);
+        return info;
+    }
+
+    public synchronized void setPreviewCallback(Camera.PreviewCallback previewCallback) {
         this.previewCallback = previewCallback;
 
         if (isOpen()) {
-            openCamera.getCamera().setPreviewCallback(previewCallback);
+            installPreviewCallback(openCamera.getCamera());
+        }
+    }
+
+    /**
+     * Sets how many reusable frame buffers are cycled between the camera and the decoder.
+     * A value of 0 falls back to {@link Camera#setPreviewCallback}, which allocates a new
+     * buffer for every frame. Takes effect the next time the preview callback is installed.
+     *
+     * @param count number of preview buffers, default is {@link PreviewBufferPool#DEFAULT_BUFFER_COUNT}
+     */
+    public synchronized void setPreviewBufferCount(int count) {
+        this.previewBufferCount = Math.max(0, count);
+    }
+
+    /**
+     * Hands a frame received in {@link Camera.PreviewCallback#onPreviewFrame} back to the camera.
+     * Every delivered frame must be released exactly once, on any thread, when the decoder is
+     * done with it.
+     *
+     * @param data the preview frame
+     */
+    public void releasePreviewBuffer(byte[] data) {
+        PreviewBufferPool pool = previewBufferPool;
+        if (pool != null && data != null) {
+            pool.recycle(data);
         }
     }
 
+    /**
+     * @return the buffer pool of the current preview, or null if frames are not buffered.
+     */
+    public PreviewBufferPool getPreviewBufferPool() {
+        return previewBufferPool;
+    }
+
+    @Override
     public void setDisplayOrientation(int degrees) {
         this.displayOrientation = degrees;
 
@@ -76,6 +200,7 @@ public final class CameraManager {
         }
     }
 
+    @Override
     public void setAutofocusInterval(long autofocusIntervalInMs) {
         this.autofocusIntervalInMs = autofocusIntervalInMs;
         if (autoFocusManager != null) {
@@ -83,6 +208,7 @@ public final class CameraManager {
         }
     }
 
+    @Override
     public void forceAutoFocus() {
         if (autoFocusManager != null) {
             autoFocusManager.start();
@@ -101,6 +227,23 @@ public final class CameraManager {
      */
     public synchronized void openDriver(SurfaceHolder holder, int width, int height)
             throws IOException {
+        prepareDriver(width, height);
+        Camera cameraObject = openCamera.getCamera();
+        cameraObject.setPreviewDisplay(holder);
+        installPreviewCallback(cameraObject);
+    }
+
+    /**
+     * Opens the camera driver and sets the hardware parameters without a surface, the slow part
+     * of {@link #openDriver}. Preview callbacks are delivered on the looper of the calling
+     * thread. Does nothing if the driver is open and configured already.
+     *
+     * @throws IOException Indicates the camera driver failed to open.
+     */
+    public synchronized void prepareDriver(int width, int height) throws IOException {
+        if (configured && isOpen()) {
+            return;
+        }
         OpenCamera theCamera = openCamera;
         if (!isOpen()) {
             theCamera = OpenCameraInterface.open(requestedCameraId);
@@ -109,8 +252,6 @@ public final class CameraManager {
             }
             openCamera = theCamera;
         }
-        theCamera.getCamera().setPreviewDisplay(holder);
-        theCamera.getCamera().setPreviewCallback(previewCallback);
         theCamera.getCamera().setDisplayOrientation(displayOrientation);
 
         if (!initialized) {
@@ -118,39 +259,84 @@ public final class CameraManager {
             configManager.initFromCameraParameters(theCamera, width, height);
         }
 
-        Camera cameraObject = theCamera.getCamera();
-        Camera.Parameters parameters = cameraObject.getParameters();
-        String parametersFlattened =
-                parameters == null ? null : parameters.flatten(); // Save these, temporarily
         try {
             configManager.setDesiredCameraParameters(theCamera, false);
         } catch (RuntimeException re) {
             // Driver failed
-            // Reset:
-            if (parametersFlattened != null) {
-                parameters = cameraObject.getParameters();
-                parameters.unflatten(parametersFlattened);
-                try {
-                    cameraObject.setParameters(parameters);
-                    configManager.setDesiredCameraParameters(theCamera, true);
-                } catch (RuntimeException re2) {
-                    // Well, darn. Give up
-                }
+            // A refused setParameters() leaves the parameters as they were, no need to reset
+            configManager.forgetProfile();
+            try {
+                configManager.setDesiredCameraParameters(theCamera, true);
+            } catch (RuntimeException re2) {
+                // Well, darn. Give up
             }
         }
-        cameraObject.setPreviewDisplay(holder);
+        configured = true;
+    }
+
+    /**
+     * Installs the preview callback, either with a pool of reusable buffers sized for the
+     * negotiated preview format or, when buffering is disabled, with per-frame allocation.
+     */
+    private void installPreviewCallback(Camera camera) {
+        // Uninstalling drops the buffers queued on the camera, the pool must forget them too
+        camera.setPreviewCallbackWithBuffer(null);
+        if (previewBufferPool != null) {
+            previewBufferPool.detach();
+        }
+        frames.clear();
+        if (previewCallback == null) {
+            return;
+        }
+        if (previewBufferCount <= 0) {
+            previewBufferPool = null;
+            camera.setPreviewCallback(previewCallback);
+            return;
+        }
+
+        Point size = configManager.getCameraResolution();
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(configManager.getPreviewFormat());
+        if (bitsPerPixel <= 0) {
+            bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+        }
+        int bufferSize = size.x * size.y * bitsPerPixel / 8;
+        if (previewBufferPool == null
+                || previewBufferPool.getCapacity() != previewBufferCount
+                || previewBufferPool.getBufferSize() != bufferSize) {
+            previewBufferPool = new PreviewBufferPool(previewBufferCount, bufferSize);
+        }
+        camera.setPreviewCallbackWithBuffer(bufferedPreviewCallback);
+        previewBufferPool.attach(camera);
     }
 
+    private final Camera.PreviewCallback bufferedPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            PreviewBufferPool pool = previewBufferPool;
+            if (pool != null) {
+                pool.onFrameDelivered(data);
+            }
+            Camera.PreviewCallback callback = previewCallback;
+            if (callback != null) {
+                callback.onPreviewFrame(data, camera);
+            } else if (pool != null) {
+                pool.recycle(data);
+            }
+        }
+    };
+
     /**
      * Allows third party apps to specify the google.zxing.client.android.android.com.google.zxing.client.android.camera ID, rather than determine
      * it automatically based on available cameras and their orientation.
      *
      * @param cameraId google.zxing.client.android.android.com.google.zxing.client.android.camera ID of the google.zxing.client.android.android.com.google.zxing.client.android.camera to use. A negative value means "no preference".
      */
+    @Override
     public synchronized void setPreviewCameraId(int cameraId) {
         requestedCameraId = cameraId;
     }
 
+    @Override
     public int getPreviewCameraId() {
         return requestedCameraId;
     }
@@ -158,22 +344,45 @@ public final class CameraManager {
     /**
      * @param enabled if {@code true}, light should be turned on if currently off. And vice versa.
      */
+    @Override
     public synchronized void setTorchEnabled(boolean enabled) {
         OpenCamera theCamera = openCamera;
-        if (theCamera != null && enabled != configManager.getTorchState(theCamera.getCamera())) {
-            boolean wasAutoFocusManager = autoFocusManager != null;
-            if (wasAutoFocusManager) {
-                autoFocusManager.stop();
-                autoFocusManager = null;
-            }
+        if (theCamera != null && enabled != configManager.getTorchState()) {
+            // Focusing goes on, only the flash and exposure parameters change
             configManager.setTorchEnabled(theCamera.getCamera(), enabled);
-            if (wasAutoFocusManager) {
-                autoFocusManager = new AutoFocusManager(theCamera.getCamera());
-                autoFocusManager.start();
+        }
+    }
+
+    @Override
+    public synchronized void setExposureCompensation(float ev) {
+        OpenCamera theCamera = openCamera;
+        if (theCamera != null && configured) {
+            configManager.setExposureCompensation(theCamera.getCamera(), ev);
+        }
+    }
+
+    /**
+     * @param area part of the preview frames to focus and meter on, null for the whole field of
+     *             view
+     */
+    @Override
+    public synchronized void setFocusArea(Rect area) {
+        OpenCamera theCamera = openCamera;
+        if (theCamera == null || !configured) {
+            return;
+        }
+        try {
+            if (configManager.setFocusArea(theCamera.getCamera(), area)
+                    && autoFocusManager != null) {
+                autoFocusManager.onFocusAreaChanged();
             }
+        } catch (RuntimeException re) {
+            // Some drivers refuse areas they claim to take, the camera goes on without
+            Log.w(TAG, "Unexpected exception while setting the focus area", re);
         }
     }
 
+    @Override
     public synchronized boolean isOpen() {
         return openCamera != null && openCamera.getCamera() != null;
     }
@@ -182,25 +391,28 @@ public final class CameraManager {
      * Closes the google.zxing.client.android.android.com.google.zxing.client.android.camera driver if still in use.
      */
     public synchronized void closeDriver() {
+        stopPreview();
+        configured = false;
         if (isOpen()) {
+            if (previewBufferPool != null) {
+                previewBufferPool.detach();
+            }
             openCamera.getCamera().release();
             openCamera = null;
-            // Make sure to clear these each time we close the google.zxing.client.android.android.com.google.zxing.client.android.camera, so that any scanning rect
-            // requested by intent is forgotten.
-            // framingRect = null;
-            // framingRectInPreview = null;
         }
     }
 
     /**
      * Asks the google.zxing.client.android.android.com.google.zxing.client.android.camera hardware to begin drawing preview frames to the screen.
      */
+    @Override
     public synchronized void startPreview() {
         OpenCamera theCamera = openCamera;
         if (theCamera != null && !previewing) {
             theCamera.getCamera().startPreview();
             previewing = true;
-            autoFocusManager = new AutoFocusManager(theCamera.getCamera());
+            autoFocusManager = new AutoFocusManager(theCamera.getCamera(),
+                    configManager.getFocusMode());
             autoFocusManager.setAutofocusInterval(autofocusIntervalInMs);
         }
     }
@@ -208,6 +420,7 @@ public final class CameraManager {
     /**
      * Tells the google.zxing.client.android.android.com.google.zxing.client.android.camera to stop drawing preview frames.
      */
+    @Override
     public synchronized void stopPreview() {
         if (autoFocusManager != null) {
             autoFocusManager.stop();
@@ -218,17 +431,4 @@ public final class CameraManager {
             previewing = false;
         }
     }
-
-    /**
-     * A factory method to build the appropriate LuminanceSource object based on the format
-     * of the preview buffers, as described by Camera.Parameters.
-     *
-     * @param data   A preview frame.
-     * @param width  The width of the image.
-     * @param height The height of the image.
-     * @return A PlanarYUVLuminanceSource instance.
-     */
-    public PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
-        return new PlanarYUVLuminanceSource(data, width, height, 0, 0, width, height, false);
-    }
 }
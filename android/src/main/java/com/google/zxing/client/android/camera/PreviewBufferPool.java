@@ -0,0 +1,150 @@
+package com.google.zxing.client.android.camera;
+
+import android.hardware.Camera;
+
+/**
+ * A fixed ring of preview buffers used with {@link Camera#setPreviewCallbackWithBuffer}.
+ * Buffers cycle between the camera queue and the decoder: the camera fills a queued buffer and
+ * hands it to the preview callback, the decoder returns it with {@link #recycle(byte[])} once
+ * the frame is no longer needed. No frame data is allocated while the preview is running.
+ * <p>
+ * When every buffer is held by the decoder the camera has nothing to fill and silently drops
+ * frames; each time this happens is counted as a starvation.
+ */
+public final class PreviewBufferPool {
+
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    private final byte[][] buffers;
+    private final boolean[] queued;
+    private final boolean[] lent;
+    private Camera camera;
+
+    private long deliveredCount;
+    private long recycledCount;
+    private long starvedCount;
+
+    PreviewBufferPool(int capacity, int bufferSize) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Buffer count must be greater than 0.");
+        }
+        buffers = new byte[capacity][];
+        for (int i = 0; i < capacity; i++) {
+            buffers[i] = new byte[bufferSize];
+        }
+        queued = new boolean[capacity];
+        lent = new boolean[capacity];
+    }
+
+    int getCapacity() {
+        return buffers.length;
+    }
+
+    int getBufferSize() {
+        return buffers[0].length;
+    }
+
+    /**
+     * Queues every buffer not currently held by the decoder on the given camera.
+     */
+    synchronized void attach(Camera camera) {
+        this.camera = camera;
+        for (int i = 0; i < buffers.length; i++) {
+            if (!lent[i] && !queued[i]) {
+                camera.addCallbackBuffer(buffers[i]);
+                queued[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Forgets the camera. Must be called whenever the camera drops its buffer queue, i.e. before
+     * the preview callback is uninstalled or the camera is released.
+     */
+    synchronized void detach() {
+        camera = null;
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = false;
+        }
+    }
+
+    synchronized void onFrameDelivered(byte[] data) {
+        int index = indexOf(data);
+        if (index < 0) {
+            return;
+        }
+        queued[index] = false;
+        lent[index] = true;
+        deliveredCount++;
+        if (countQueued() == 0) {
+            starvedCount++;
+        }
+    }
+
+    /**
+     * Gives a delivered buffer back to the camera. Buffers not owned by this pool are ignored, so
+     * it is safe to call with frames that came from an unbuffered callback.
+     */
+    public synchronized void recycle(byte[] data) {
+        int index = indexOf(data);
+        if (index < 0 || !lent[index]) {
+            return;
+        }
+        lent[index] = false;
+        recycledCount++;
+        if (camera != null) {
+            camera.addCallbackBuffer(data);
+            queued[index] = true;
+        }
+    }
+
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public synchronized long getRecycledCount() {
+        return recycledCount;
+    }
+
+    /**
+     * @return how many times the camera queue ran empty because the decoder held every buffer.
+     */
+    public synchronized long getStarvedCount() {
+        return starvedCount;
+    }
+
+    public synchronized int getInFlightCount() {
+        int count = 0;
+        for (boolean l : lent) {
+            if (l) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void resetCounters() {
+        deliveredCount = 0;
+        recycledCount = 0;
+        starvedCount = 0;
+    }
+
+    private int indexOf(byte[] data) {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == data) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int countQueued() {
+        int count = 0;
+        for (boolean q : queued) {
+            if (q) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,159 @@
+package tech.gentleflow.qr_scan;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.EventChannel;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
+
+/**
+ * 批量解析图片：在与 CPU 核数相同的线程池上并行解析，每解析完一张就通过 EventChannel 推送结果。
+ * <p>
+ * 事件格式：{batchId, index, path, text} 或 {batchId, index, path, error}，
+ * 全部结束（或取消）后推送 {batchId, done: true, cancelled}。
+ * 除解析外所有方法都在主线程调用。
+ */
+final class BatchDecoder implements EventChannel.StreamHandler {
+
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<Integer, Batch> batches = new HashMap<>();
+    private EventChannel.EventSink events;
+
+    private static final class Batch {
+        final List<Future<?>> futures = new ArrayList<>();
+        int remaining;
+        boolean cancelled;
+    }
+
+    BatchDecoder() {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "QrBatchDecode-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        this.events = events;
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        this.events = null;
+    }
+
+    void start(final int batchId, List<String> paths, final DecodeOptions options) {
+        cancel(batchId);
+        final Batch batch = new Batch();
+        batches.put(batchId, batch);
+        batch.remaining = paths.size();
+        if (batch.remaining == 0) {
+            finish(batchId, batch);
+            return;
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            final int index = i;
+            final String path = paths.get(i);
+            batch.futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    String text = null;
+                    String error = null;
+                    try {
+                        if (path == null || !new File(path).exists()) {
+                            error = "File not found";
+                        } else {
+                            text = QRCodeDecoder.syncDecodeQRCode(path, options);
+                            if (text == null) {
+                                error = "not data";
+                            }
+                        }
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        error = e.toString();
+                    }
+                    post(batchId, batch, index, path, text, error);
+                }
+            }));
+        }
+    }
+
+    void cancel(int batchId) {
+        Batch batch = batches.get(batchId);
+        if (batch == null || batch.cancelled) {
+            return;
+        }
+        batch.cancelled = true;
+        for (Future<?> future : batch.futures) {
+            future.cancel(false);
+        }
+        finish(batchId, batch);
+    }
+
+    void dispose() {
+        for (Batch batch : batches.values()) {
+            batch.cancelled = true;
+        }
+        batches.clear();
+        executor.shutdownNow();
+        events = null;
+    }
+
+    private void post(final int batchId, final Batch batch, final int index, final String path,
+                      final String text, final String error) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (batch.cancelled) {
+                    return;
+                }
+                if (events != null) {
+                    Map<String, Object> event = new HashMap<>();
+                    event.put("batchId", batchId);
+                    event.put("index", index);
+                    event.put("path", path);
+                    if (text != null) {
+                        event.put("text", text);
+                    } else {
+                        event.put("error", error);
+                    }
+                    events.success(event);
+                }
+                if (--batch.remaining == 0) {
+                    finish(batchId, batch);
+                }
+            }
+        });
+    }
+
+    private void finish(int batchId, Batch batch) {
+        if (batches.get(batchId) == batch) {
+            batches.remove(batchId);
+        }
+        if (events != null) {
+            Map<String, Object> event = new HashMap<>();
+            event.put("batchId", batchId);
+            event.put("done", true);
+            event.put("cancelled", batch.cancelled);
+            events.success(event);
+        }
+    }
+}
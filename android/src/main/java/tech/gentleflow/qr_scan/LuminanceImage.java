@@ -0,0 +1,202 @@
+package tech.gentleflow.qr_scan;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+import java.io.IOException;
+
+import tech.gentleflow.qr_scan.decode.LuminancePlanes;
+
+/**
+ * 只含亮度的图片，用于低内存解析本地图片。
+ * <p>
+ * 按宽高一起算出 2 的幂采样率，使像素数不超过预算；再用 BitmapRegionDecoder 以 RGB_565 按行条带解码，
+ * 每条转成亮度后立即回收，不再生成整张 ARGB 位图和 int[宽*高] 像素数组。
+ */
+final class LuminanceImage {
+
+    /**
+     * 默认像素预算，约 1000x1000，超出时按 2 的幂缩小
+     */
+    static final long DEFAULT_MAX_PIXELS = 1024 * 1024;
+    /**
+     * 每个条带解码后的行数
+     */
+    private static final int STRIP_ROWS = 64;
+
+    final byte[] luminances;
+    final int width;
+    final int height;
+
+    private LuminanceImage(byte[] luminances, int width, int height) {
+        this.luminances = luminances;
+        this.width = width;
+        this.height = height;
+    }
+
+    LuminanceSource toLuminanceSource() {
+        return new PlanarYUVLuminanceSource(luminances, width, height, 0, 0, width, height, false);
+    }
+
+    /**
+     * 读取本地图片的亮度，像素数不超过 {@link #DEFAULT_MAX_PIXELS}，按照 EXIF 方向纠正。该方法是耗时操作，请在子线程中调用。
+     *
+     * @param picturePath 本地图片文件路径
+     * @return 图片亮度 或 null（无法解码）
+     */
+    static LuminanceImage decodeFile(String picturePath) {
+        return decodeFile(picturePath, DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * @param picturePath 本地图片文件路径
+     * @param maxPixels   采样后最多的像素数
+     * @return 按照 EXIF 方向纠正后的图片亮度 或 null（无法解码）
+     */
+    static LuminanceImage decodeFile(String picturePath, long maxPixels) {
+        LuminanceImage image = decodeSampled(picturePath, maxPixels);
+        // 串行与并行解析读到同样朝向的图片
+        return image == null ? null : image.rotate(getExifRotation(picturePath));
+    }
+
+    private static LuminanceImage decodeSampled(String picturePath, long maxPixels) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(picturePath, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = LuminancePlanes.sampleSize(bounds.outWidth, bounds.outHeight, maxPixels);
+
+        BitmapRegionDecoder regionDecoder;
+        try {
+            regionDecoder = BitmapRegionDecoder.newInstance(picturePath, false);
+        } catch (IOException e) {
+            // 只支持 JPEG、PNG 和 WebP，其他格式整张解码
+            regionDecoder = null;
+        }
+        try {
+            if (regionDecoder == null) {
+                return decodeWhole(picturePath, sampleSize);
+            }
+            return decodeStrips(regionDecoder, sampleSize);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            if (regionDecoder != null) {
+                regionDecoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * @param degrees 顺时针旋转的角度，0、90、180 或 270
+     * @return 旋转后的图片，0 度时返回自身
+     */
+    LuminanceImage rotate(int degrees) {
+        if (degrees == 0) {
+            return this;
+        }
+        byte[] rotated = LuminancePlanes.rotate(luminances, width, height, degrees);
+        return degrees == 180 ? new LuminanceImage(rotated, width, height)
+                : new LuminanceImage(rotated, height, width);
+    }
+
+    /**
+     * @return 图片需要顺时针旋转的角度
+     */
+    private static int getExifRotation(String picturePath) {
+        try {
+            ExifInterface exif = new ExifInterface(picturePath);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 逐行读取 bitmap 的亮度，只需要一行的 ARGB 缓存。
+     */
+    static LuminanceImage fromBitmap(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        byte[] luminances = new byte[width * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            LuminancePlanes.fromArgb(row, width, luminances, y * width);
+        }
+        return new LuminanceImage(luminances, width, height);
+    }
+
+    private static LuminanceImage decodeStrips(BitmapRegionDecoder regionDecoder, int sampleSize) {
+        int sourceWidth = regionDecoder.getWidth();
+        int sourceHeight = regionDecoder.getHeight();
+        int width = sourceWidth / sampleSize;
+        int height = sourceHeight / sampleSize;
+        if (width == 0 || height == 0) {
+            return null;
+        }
+        byte[] luminances = new byte[width * height];
+        int[] row = new int[width];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Rect region = new Rect();
+        int y = 0;
+        while (y < height) {
+            // 条带从采样后的第 y 行开始，与采样网格对齐
+            int top = y * sampleSize;
+            region.set(0, top, sourceWidth, Math.min(top + STRIP_ROWS * sampleSize, sourceHeight));
+            Bitmap strip = regionDecoder.decodeRegion(region, options);
+            if (strip == null) {
+                return null;
+            }
+            try {
+                int rows = Math.min(strip.getHeight(), height - y);
+                int columns = Math.min(strip.getWidth(), width);
+                if (rows <= 0) {
+                    break;
+                }
+                for (int i = 0; i < rows; i++) {
+                    strip.getPixels(row, 0, columns, 0, i, columns, 1);
+                    LuminancePlanes.fromArgb(row, columns, luminances, (y + i) * width);
+                }
+                y += rows;
+            } finally {
+                strip.recycle();
+            }
+        }
+        return new LuminanceImage(luminances, width, height);
+    }
+
+    private static LuminanceImage decodeWhole(String picturePath, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(picturePath, options);
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            return fromBitmap(bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+}
@@ -1,29 +1,31 @@
 package tech.gentleflow.qr_scan;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Log;
 
 import com.google.zxing.BarcodeFormat;
-import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
-import com.google.zxing.LuminanceSource;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
-import com.google.zxing.RGBLuminanceSource;
 import com.google.zxing.Result;
-import com.google.zxing.common.GlobalHistogramBinarizer;
-import com.google.zxing.common.HybridBinarizer;
 
 import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 
+import tech.gentleflow.qr_scan.decode.DecodeContext;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
+import tech.gentleflow.qr_scan.decode.ParallelDecoder;
+
 /**
  * 描述:解析二维码图片
  */
 public class QRCodeDecoder {
+    /**
+     * 全部格式的解析参数，已不再使用
+     *
+     * @deprecated 使用 {@link #DEFAULT_OPTIONS} 的 {@link DecodeOptions#getHints()}
+     */
+    @Deprecated
     public static final Map<DecodeHintType, Object> HINTS = new EnumMap<>(DecodeHintType.class);
     static {
         List<BarcodeFormat> allFormats = new ArrayList<>();
@@ -44,10 +46,26 @@ public class QRCodeDecoder {
         allFormats.add(BarcodeFormat.UPC_A);
         allFormats.add(BarcodeFormat.UPC_E);
         allFormats.add(BarcodeFormat.UPC_EAN_EXTENSION);
-        HINTS.put(DecodeHintType.TRY_HARDER, BarcodeFormat.QR_CODE);
+        HINTS.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
         HINTS.put(DecodeHintType.POSSIBLE_FORMATS, allFormats);
         HINTS.put(DecodeHintType.CHARACTER_SET, "utf-8");
     }
+    /**
+     * 图片解析默认选项：全部格式，TRY_HARDER
+     */
+    public static final DecodeOptions DEFAULT_OPTIONS =
+            new DecodeOptions(EnumSet.allOf(BarcodeFormat.class), DecodeOptions.Effort.THOROUGH);
+
+    /**
+     * 每个解析线程复用自己的解析器及二值化缓存
+     */
+    private static final ThreadLocal<DecodeContext> DECODE_CONTEXT = new ThreadLocal<DecodeContext>() {
+        @Override
+        protected DecodeContext initialValue() {
+            return new DecodeContext(DEFAULT_OPTIONS);
+        }
+    };
+
     private QRCodeDecoder() {
     }
     /**
@@ -57,7 +75,17 @@ public class QRCodeDecoder {
      * @return 返回二维码图片里的内容 或 null
      */
     public static String syncDecodeQRCode(String picturePath) {
-        return syncDecodeQRCode(getDecodeAbleBitmap(picturePath));
+        return syncDecodeQRCode(picturePath, DEFAULT_OPTIONS);
+    }
+    /**
+     * 同步解析本地图片二维码，图片按照 EXIF 方向纠正。该方法是耗时操作，请在子线程中调用。
+     *
+     * @param picturePath 要解析的二维码图片本地路径
+     * @param options     要识别的格式及识别力度
+     * @return 返回二维码图片里的内容 或 null
+     */
+    public static String syncDecodeQRCode(String picturePath, DecodeOptions options) {
+        return decode(LuminanceImage.decodeFile(picturePath), options);
     }
     /**
      * 同步解析bitmap二维码。该方法是耗时操作，请在子线程中调用。
@@ -66,63 +94,77 @@ public class QRCodeDecoder {
      * @return 返回二维码图片里的内容 或 null
      */
     public static String syncDecodeQRCode(Bitmap bitmap) {
-        Result result = null;
-        RGBLuminanceSource source = null;
-        try {
-            int width = bitmap.getWidth();
-            int height = bitmap.getHeight();
-            int[] pixels = new int[width * height];
-            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-            source = new RGBLuminanceSource(width, height, pixels);
-            result = new MultiFormatReader().decode(new BinaryBitmap(new HybridBinarizer(source)), HINTS);
-            return result.getText();
-        } catch (Exception e) {
-            if (source != null) {
-                try {
-                    result = new MultiFormatReader().decode(new BinaryBitmap(new GlobalHistogramBinarizer(source)), HINTS);
-                    return result.getText();
-                } catch (Throwable e2) {
-                    MultiFormatReader multiFormatReader = new MultiFormatReader();
-                    try {
-                        LuminanceSource invertedSource = source.invert();
-                        BinaryBitmap binaryBitmap = new BinaryBitmap(new HybridBinarizer(invertedSource));
+        return syncDecodeQRCode(bitmap, DEFAULT_OPTIONS);
+    }
+    /**
+     * 同步解析bitmap二维码。该方法是耗时操作，请在子线程中调用。
+     *
+     * @param bitmap  要解析的二维码图片
+     * @param options 要识别的格式及识别力度，只识别二维码时不会运行其他格式的解析器
+     * @return 返回二维码图片里的内容 或 null
+     */
+    public static String syncDecodeQRCode(Bitmap bitmap, DecodeOptions options) {
+        if (bitmap == null) {
+            return null;
+        }
+        return decode(LuminanceImage.fromBitmap(bitmap), options);
+    }
 
-                        result = multiFormatReader.decode(binaryBitmap, HINTS);
-                        return result.getText();
-                    } catch (NotFoundException exception) {
-                        e.printStackTrace();
-                        e2.printStackTrace();
-                        exception.printStackTrace();
-                        return null;
-                    } finally {
-                        multiFormatReader.reset();
-                    }
-                }
-            }
+    private static String decode(LuminanceImage image, DecodeOptions options) {
+        if (image == null) {
             return null;
         }
+        DecodeContext decodeContext = DECODE_CONTEXT.get();
+        decodeContext.setOptions(options);
+        Result result = decodeContext.decode(image.toLuminanceSource());
+        return result == null ? null : result.getText();
     }
+
     /**
-     * 将本地图片文件转换成可解码二维码的 Bitmap。为了避免图片太大，这里对图片进行了压缩。感谢 https://github.com/devilsen 提的 PR
+     * 同步解析本地图片里的全部码。该方法是耗时操作，请在子线程中调用。
      *
-     * @param picturePath 本地图片文件路径
-     * @return
+     * @param picturePath 要解析的二维码图片本地路径
+     * @param options     要识别的格式及识别力度
+     * @return 返回全部识别结果（坐标为按照 EXIF 方向纠正并压缩后图片中的坐标） 或 null
      */
-    private static Bitmap getDecodeAbleBitmap(String picturePath) {
+    public static Result[] syncDecodeQRCodes(String picturePath, DecodeOptions options) {
+        LuminanceImage image = LuminanceImage.decodeFile(picturePath);
+        if (image == null) {
+            return null;
+        }
+        DecodeContext decodeContext = DECODE_CONTEXT.get();
+        decodeContext.setOptions(options);
+        return decodeContext.decodeMultiple(image.toLuminanceSource());
+    }
+
+    /**
+     * 多核并行解析本地图片：各种二值化方式（及一维码的旋转图）同时进行，先解析成功的结果胜出，其余的在下一步之前放弃。
+     * 图片与 {@link #syncDecodeQRCode(String, DecodeOptions)} 一样按照 EXIF 方向纠正。该方法是耗时操作，请在子线程中调用。
+     *
+     * @param picturePath 要解析的二维码图片本地路径
+     * @param options     要识别的格式及识别力度
+     * @return 返回二维码图片里的内容 或 null
+     */
+    public static String syncDecodeQRCodeParallel(String picturePath, DecodeOptions options) {
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            return syncDecodeQRCode(picturePath, options);
+        }
+        LuminanceImage image = LuminanceImage.decodeFile(picturePath);
+        if (image == null) {
+            return null;
+        }
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(picturePath, options);
-            int sampleSize = options.outHeight / 400;
-            if (sampleSize <= 0) {
-                sampleSize = 1;
-            }
-            options.inSampleSize = sampleSize;
-            options.inJustDecodeBounds = false;
-            return BitmapFactory.decodeFile(picturePath, options);
-        } catch (Exception e) {
-            Log.d("QR", "NOT FOUND INVERTED");
+            Result result = ParallelDecoderHolder.INSTANCE.decode(image.luminances, image.width,
+                    image.height, options);
+            return result == null ? null : result.getText();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         }
     }
+
+    private static final class ParallelDecoderHolder {
+        static final ParallelDecoder INSTANCE =
+                new ParallelDecoder(Runtime.getRuntime().availableProcessors());
+    }
 }
\ No newline at end of file
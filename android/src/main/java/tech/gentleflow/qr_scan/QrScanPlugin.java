@@ -2,12 +2,19 @@ package tech.gentleflow.qr_scan;
 import android.annotation.SuppressLint;
 import android.os.AsyncTask;
 import androidx.annotation.NonNull;
+import com.google.zxing.ResultPoint;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
 import tech.gentleflow.qr_scan.factorys.QrReaderFactory;
 
 /** QrScanPlugin */
@@ -17,7 +24,10 @@ public class QrScanPlugin implements FlutterPlugin, MethodCallHandler {
   /// This local reference serves to register the plugin with the Flutter Engine and unregister it
   /// when the Flutter Engine is detached from the Activity
   private MethodChannel channel;
+  private EventChannel batchChannel;
+  private BatchDecoder batchDecoder;
   private static final String CHANNEL_NAME = "tech.gentleflow.qr_scan";
+  private static final String CHANNEL_BATCH_NAME = "tech.gentleflow.qr_scan/batch";
   private static final String CHANNEL_VIEW_NAME = "tech.gentleflow.qr_scan.reader_view";
 
 
@@ -26,12 +36,25 @@ public class QrScanPlugin implements FlutterPlugin, MethodCallHandler {
     channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), CHANNEL_NAME);
     flutterPluginBinding.getPlatformViewRegistry().registerViewFactory(CHANNEL_VIEW_NAME,new QrReaderFactory(flutterPluginBinding));
     channel.setMethodCallHandler(this);
+    batchDecoder = new BatchDecoder();
+    batchChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), CHANNEL_BATCH_NAME);
+    batchChannel.setStreamHandler(batchDecoder);
   }
 
   @Override
   public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
     if (call.method.equals("imgQrCode")) {
       imgQrCode(call, result);
+    } else if (call.method.equals("imgQrCodes")) {
+      imgQrCodes(call, result);
+    } else if (call.method.equals("imgQrCodeBatch")) {
+      imgQrCodeBatch(call, result);
+    } else if (call.method.equals("cancelImgQrCodeBatch")) {
+      Integer batchId = call.argument("batchId");
+      if (batchId != null) {
+        batchDecoder.cancel(batchId);
+      }
+      result.success(null);
     } else {
       result.notImplemented();
     }
@@ -40,6 +63,9 @@ public class QrScanPlugin implements FlutterPlugin, MethodCallHandler {
   @SuppressLint("StaticFieldLeak")
   void imgQrCode(MethodCall call, final Result result) {
     final String filePath = call.argument("file");
+    final DecodeOptions options = DecodeOptions.fromParams(call.argument("formats"),
+        call.argument("effort"), DecodeOptions.Effort.THOROUGH);
+    final boolean parallel = Boolean.TRUE.equals(call.argument("parallel"));
     if (filePath == null) {
       result.error("Not found data", null, null);
       return;
@@ -53,7 +79,10 @@ public class QrScanPlugin implements FlutterPlugin, MethodCallHandler {
       @Override
       protected String doInBackground(String... params) {
         // 解析二维码/条码
-        return QRCodeDecoder.syncDecodeQRCode(filePath);
+        if (parallel) {
+          return QRCodeDecoder.syncDecodeQRCodeParallel(filePath, options);
+        }
+        return QRCodeDecoder.syncDecodeQRCode(filePath, options);
       }
       @Override
       protected void onPostExecute(String s) {
@@ -67,8 +96,66 @@ public class QrScanPlugin implements FlutterPlugin, MethodCallHandler {
     }.execute(filePath);
   }
 
+  @SuppressLint("StaticFieldLeak")
+  void imgQrCodes(MethodCall call, final Result result) {
+    final String filePath = call.argument("file");
+    final DecodeOptions options = DecodeOptions.fromParams(call.argument("formats"),
+        call.argument("effort"), DecodeOptions.Effort.THOROUGH).withMultiple(true);
+    if (filePath == null || !new File(filePath).exists()) {
+      result.error("File not found", null, null);
+      return;
+    }
+
+    new AsyncTask<String, Integer, List<Map<String, Object>>>() {
+      @Override
+      protected List<Map<String, Object>> doInBackground(String... params) {
+        // 解析图片里的全部二维码/条码
+        com.google.zxing.Result[] results = QRCodeDecoder.syncDecodeQRCodes(filePath, options);
+        List<Map<String, Object>> list = new ArrayList<>();
+        if (results == null) {
+          return list;
+        }
+        for (com.google.zxing.Result r : results) {
+          ResultPoint[] resultPoints = r.getResultPoints();
+          int count = resultPoints == null ? 0 : resultPoints.length;
+          double[] points = new double[count * 2];
+          for (int i = 0; i < count; i++) {
+            points[i * 2] = resultPoints[i].getX();
+            points[i * 2 + 1] = resultPoints[i].getY();
+          }
+          Map<String, Object> map = new HashMap<>();
+          map.put("text", r.getText());
+          map.put("format", r.getBarcodeFormat().ordinal());
+          map.put("points", points);
+          list.add(map);
+        }
+        return list;
+      }
+      @Override
+      protected void onPostExecute(List<Map<String, Object>> list) {
+        super.onPostExecute(list);
+        result.success(list);
+      }
+    }.execute(filePath);
+  }
+
+  void imgQrCodeBatch(MethodCall call, Result result) {
+    final Integer batchId = call.argument("batchId");
+    final List<String> paths = call.argument("files");
+    if (batchId == null || paths == null) {
+      result.error("Not found data", null, null);
+      return;
+    }
+    DecodeOptions options = DecodeOptions.fromParams(call.argument("formats"),
+        call.argument("effort"), DecodeOptions.Effort.THOROUGH);
+    batchDecoder.start(batchId, paths, options);
+    result.success(batchId);
+  }
+
   @Override
   public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
     channel.setMethodCallHandler(null);
+    batchChannel.setStreamHandler(null);
+    batchDecoder.dispose();
   }
 }
@@ -0,0 +1,336 @@
+package tech.gentleflow.qr_scan.camera;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+
+/**
+ * Runs a {@link CameraBackend} on a looper thread of its own: opening, configuring and every
+ * other command is queued to that thread in call order and the method returns at once, so the
+ * main thread never waits for the camera, and the preview callbacks of the legacy API arrive on
+ * that thread rather than the main one. The getters go straight to the backend.
+ * <p>
+ * {@link #close()} is the exception, it waits for the camera to let go of the surface, since the
+ * surface is gone once {@link SurfaceHolder.Callback#surfaceDestroyed} returns. A command that
+ * fails is logged, there is no caller left to throw to. The thread is started on the first
+ * command and ends with {@link #release()}.
+ */
+public final class AsyncCameraBackend implements CameraBackend {
+
+    /**
+     * Called on the main thread.
+     */
+    public interface OpenListener {
+
+        /**
+         * The camera is open and its frame size known.
+         */
+        void onCameraOpened();
+    }
+
+    private static final String TAG = AsyncCameraBackend.class.getSimpleName();
+    private static final long CLOSE_TIMEOUT_MS = 2500;
+
+    private final CameraBackend camera;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread thread;
+    private Handler handler;
+    private volatile OpenListener openListener;
+    // Set on the calling thread, so isOpen() holds from the moment open() is called, and cleared
+    // again on the main thread when opening fails
+    private volatile boolean open;
+    // Main thread only: bumped by every prepare, open and close, a failure only clears the open
+    // state of the call that failed
+    private int openGeneration;
+
+    public AsyncCameraBackend(CameraBackend camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * @return the backend doing the work
+     */
+    public CameraBackend getBackend() {
+        return camera;
+    }
+
+    public void setOpenListener(OpenListener openListener) {
+        this.openListener = openListener;
+    }
+
+    @Override
+    public void setFrameCallback(final FrameCallback callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setFrameCallback(callback);
+            }
+        });
+    }
+
+    @Override
+    public int getFrameWidth() {
+        return camera.getFrameWidth();
+    }
+
+    @Override
+    public int getFrameHeight() {
+        return camera.getFrameHeight();
+    }
+
+    @Override
+    public void releaseFrame(Frame frame) {
+        camera.releaseFrame(frame);
+    }
+
+    /**
+     * Starts opening the camera, e.g. while the view is being laid out.
+     */
+    @Override
+    public void prepare(final int viewWidth, final int viewHeight) {
+        open = true;
+        final int generation = ++openGeneration;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    camera.prepare(viewWidth, viewHeight);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Failed to prepare the camera", e);
+                    camera.close();
+                    onOpenFailed(generation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues opening the camera, the {@link OpenListener} is called once it is open.
+     */
+    @Override
+    public void open(final SurfaceHolder holder, final int viewWidth, final int viewHeight) {
+        open = true;
+        final int generation = ++openGeneration;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    camera.open(holder, viewWidth, viewHeight);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Failed to open the camera", e);
+                    camera.close();
+                    onOpenFailed(generation);
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        OpenListener listener = openListener;
+                        if (open && listener != null) {
+                            listener.onCameraOpened();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the camera and waits until it is closed, at most {@link #CLOSE_TIMEOUT_MS}.
+     */
+    @Override
+    public void close() {
+        open = false;
+        openGeneration++;
+        final CountDownLatch closed = new CountDownLatch(1);
+        if (!post(new Runnable() {
+            @Override
+            public void run() {
+                camera.close();
+                closed.countDown();
+            }
+        }) || Looper.myLooper() == handler.getLooper()) {
+            return;
+        }
+        try {
+            if (!closed.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Camera still closing after " + CLOSE_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Clears the open state on the main thread, unless the camera was prepared, opened or closed
+     * again since, so the next open tries again.
+     */
+    private void onOpenFailed(final int generation) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == openGeneration) {
+                    open = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends the thread once the queued commands ran. A later command starts a new one.
+     */
+    public synchronized void release() {
+        if (thread != null) {
+            final HandlerThread ending = thread;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ending.quit();
+                }
+            });
+            thread = null;
+        }
+    }
+
+    @Override
+    public void startPreview() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.startPreview();
+            }
+        });
+    }
+
+    @Override
+    public void stopPreview() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.stopPreview();
+            }
+        });
+    }
+
+    @Override
+    public void setPreviewCameraId(final int cameraId) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setPreviewCameraId(cameraId);
+            }
+        });
+    }
+
+    @Override
+    public int getPreviewCameraId() {
+        return camera.getPreviewCameraId();
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        return camera.isFrontFacing();
+    }
+
+    @Override
+    public int getSensorOrientation() {
+        return camera.getSensorOrientation();
+    }
+
+    @Override
+    public void setDisplayOrientation(final int degrees) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setDisplayOrientation(degrees);
+            }
+        });
+    }
+
+    @Override
+    public void setTorchEnabled(final boolean enabled) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setTorchEnabled(enabled);
+            }
+        });
+    }
+
+    @Override
+    public void setExposureCompensation(final float ev) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setExposureCompensation(ev);
+            }
+        });
+    }
+
+    @Override
+    public void setAutofocusInterval(final long autofocusIntervalInMs) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setAutofocusInterval(autofocusIntervalInMs);
+            }
+        });
+    }
+
+    @Override
+    public void forceAutoFocus() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.forceAutoFocus();
+            }
+        });
+    }
+
+    @Override
+    public void setFocusArea(Rect area) {
+        final Rect copy = area == null ? null : new Rect(area);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                camera.setFocusArea(copy);
+            }
+        });
+    }
+
+    /**
+     * @return false if the command could not be queued
+     */
+    private synchronized boolean post(final Runnable command) {
+        if (thread == null) {
+            thread = new HandlerThread("QrCamera");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    // Nobody up the stack of this thread to tell, the camera goes on
+                    Log.w(TAG, "Camera command failed", e);
+                }
+            }
+        });
+    }
+}
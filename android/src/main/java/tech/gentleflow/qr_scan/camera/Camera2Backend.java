@@ -0,0 +1,824 @@
+package tech.gentleflow.qr_scan.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+
+/**
+ * Camera2 backend: the preview goes to the surface at display resolution while frames are read
+ * from a second, smaller YUV_420_888 stream of an {@link ImageReader}. The decoder reads the Y
+ * plane of each image in place and the image is closed when the frame is released, so frames
+ * are never copied.
+ * <p>
+ * The capture request is set up for scanning: continuous focus when available and a frame rate
+ * of at most 30 fps, in the auto control mode. The barcode scene mode is not used, a scene mode
+ * may override the focus and exposure modes, and with them the focus triggers, the metering
+ * regions and the exposure compensation set here. The frame size, focus mode and frame rate
+ * range are kept in a {@link CameraProfileStore} once a session ran with them, later opens
+ * reuse them. Focus and exposure are metered on the focus area, when given, through the AF and
+ * AE regions of the request.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class Camera2Backend implements CameraBackend {
+
+    private static final String TAG = Camera2Backend.class.getSimpleName();
+
+    private static final int MAX_PREVIEW_PIXELS = 1920 * 1080;
+    private static final int MIN_FRAME_PIXELS = 320 * 240;
+    /**
+     * Frames are decoded at most at this size, like the preview of the legacy backend
+     */
+    private static final int MAX_FRAME_PIXELS = 1280 * 720;
+    /**
+     * Profiles of this API, apart from the legacy ones
+     */
+    private static final String BACKEND = "camera2";
+    /**
+     * Images the decoder holds, one decoding and one waiting, plus two for
+     * {@link ImageReader#acquireLatestImage()}
+     */
+    private static final int MAX_IMAGES = 4;
+    private static final int TARGET_FPS = 30;
+    private static final long DEFAULT_AUTO_FOCUS_INTERVAL_MS = 5000L;
+    /**
+     * How long a focus scan asked for in continuous focus holds the focus
+     */
+    private static final long FOCUS_LOCK_MS = 2000L;
+
+    private static final Map<String, CameraCharacteristics> CHARACTERISTICS = new HashMap<>();
+
+    private final CameraManager cameraManager;
+    private final CameraProfileStore profileStore;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Looper of the thread that opened the camera
+    private Handler handler = mainHandler;
+    private final Frame[] frames = new Frame[MAX_IMAGES];
+    private final Image[] images = new Image[MAX_IMAGES];
+
+    private volatile FrameCallback callback;
+    private int requestedCameraId = -1;
+    private String cameraId;
+    private volatile CameraCharacteristics characteristics;
+    private Size previewSize;
+    private volatile Size frameSize;
+    private int viewWidth;
+    private int viewHeight;
+    // Saved, or negotiated and saved once a session runs with it
+    private CameraProfile profile;
+    private boolean profileSaved;
+    private SurfaceHolder holder;
+    private HandlerThread imageThread;
+    private ImageReader imageReader;
+    // Reader closed once the decoder released its last image, guarded by this
+    private ImageReader retiredReader;
+    // Set when the reader is closed or retired, no image is lent after, guarded by this
+    private boolean readerClosed;
+    private boolean opening;
+    private CameraDevice device;
+    private CameraCaptureSession session;
+    private int sessionGeneration;
+    private CaptureRequest.Builder request;
+    private boolean previewing;
+    private boolean torchEnabled;
+    // In steps of CONTROL_AE_COMPENSATION_STEP
+    private int exposureCompensation;
+    private int focusMode = CameraMetadata.CONTROL_AF_MODE_OFF;
+    private Range<Integer> fpsRange;
+    private long autofocusIntervalInMs = DEFAULT_AUTO_FOCUS_INTERVAL_MS;
+    // In frame coordinates, null for the whole field of view
+    private Rect focusArea;
+    // Regions of the request template, put back when the focus area is cleared
+    private MeteringRectangle[] defaultAfRegions;
+    private MeteringRectangle[] defaultAeRegions;
+
+    public Camera2Backend(Context context) {
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        profileStore = new CameraProfileStore(context);
+        for (int i = 0; i < MAX_IMAGES; i++) {
+            frames[i] = new Frame();
+        }
+    }
+
+    /**
+     * @return true if the back camera supports more than the legacy level of Camera2, below
+     * that Camera2 runs on top of the old API and gains nothing over it
+     */
+    public static boolean isPreferred(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String id = selectCameraId(manager, -1);
+            if (id == null) {
+                return false;
+            }
+            Integer level = characteristicsOf(manager, id)
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null
+                    && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public int getFrameWidth() {
+        return frameSize == null ? 0 : frameSize.getWidth();
+    }
+
+    @Override
+    public int getFrameHeight() {
+        return frameSize == null ? 0 : frameSize.getHeight();
+    }
+
+    @Override
+    public void releaseFrame(Frame frame) {
+        Image image = null;
+        ImageReader reader = null;
+        synchronized (this) {
+            for (int i = 0; i < MAX_IMAGES; i++) {
+                if (frames[i] == frame) {
+                    image = images[i];
+                    images[i] = null;
+                    break;
+                }
+            }
+            if (retiredReader != null && lentCount() == 0) {
+                reader = retiredReader;
+                retiredReader = null;
+            }
+        }
+        if (image != null) {
+            image.close();
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void prepare(int viewWidth, int viewHeight) throws IOException {
+        if (isOpen()) {
+            return;
+        }
+        try {
+            cameraId = selectCameraId(cameraManager, requestedCameraId);
+            if (cameraId == null) {
+                throw new IOException("No camera " + requestedCameraId);
+            }
+            characteristics = characteristicsOf(cameraManager, cameraId);
+        } catch (CameraAccessException e) {
+            throw new IOException(e);
+        }
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            throw new IOException("No stream configurations");
+        }
+        previewSize = choosePreviewSize(map.getOutputSizes(SurfaceHolder.class), viewWidth,
+                viewHeight);
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        profile = profileStore.load(BACKEND, cameraId, viewWidth, viewHeight);
+        profileSaved = profile != null;
+        if (profile == null) {
+            negotiate(map);
+        } else {
+            applyProfile();
+        }
+        // Callbacks of the device arrive on the thread opening it, like with the legacy API
+        Looper looper = Looper.myLooper();
+        handler = looper == null ? mainHandler : new Handler(looper);
+
+        imageThread = new HandlerThread("QrCamera2");
+        imageThread.start();
+        imageReader = ImageReader.newInstance(frameSize.getWidth(), frameSize.getHeight(),
+                ImageFormat.YUV_420_888, MAX_IMAGES);
+        synchronized (this) {
+            readerClosed = false;
+        }
+        imageReader.setOnImageAvailableListener(imageListener, new Handler(imageThread.getLooper()));
+        opening = true;
+        try {
+            cameraManager.openCamera(cameraId, deviceCallback, handler);
+        } catch (CameraAccessException | SecurityException e) {
+            close();
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void open(SurfaceHolder holder, int viewWidth, int viewHeight) throws IOException {
+        prepare(viewWidth, viewHeight);
+        if (this.holder == holder) {
+            return;
+        }
+        this.holder = holder;
+        final SurfaceHolder sizedHolder = holder;
+        final Size size = previewSize;
+        Runnable setFixedSize = new Runnable() {
+            @Override
+            public void run() {
+                sizedHolder.setFixedSize(size.getWidth(), size.getHeight());
+            }
+        };
+        // The surface is laid out by the UI thread, the session is created once the device
+        // opened, well after the resize
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            setFixedSize.run();
+        } else {
+            mainHandler.post(setFixedSize);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return opening || device != null;
+    }
+
+    @Override
+    public void close() {
+        stopPreview();
+        opening = false;
+        holder = null;
+        focusArea = null;
+        exposureCompensation = 0;
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+        if (imageReader != null) {
+            imageReader.setOnImageAvailableListener(null, null);
+            synchronized (this) {
+                // A callback already running on the image thread lends nothing from now on
+                readerClosed = true;
+                // The decoder may still read the plane of an image
+                if (lentCount() == 0) {
+                    imageReader.close();
+                } else {
+                    retiredReader = imageReader;
+                }
+            }
+            imageReader = null;
+        }
+        if (imageThread != null) {
+            // The next prepare starts a new reader, no callback of this one may still run
+            imageThread.quitSafely();
+            try {
+                imageThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            imageThread = null;
+        }
+    }
+
+    @Override
+    public void startPreview() {
+        previewing = true;
+        if (device != null && session == null) {
+            createSession();
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        previewing = false;
+        handler.removeCallbacks(autoFocusRunnable);
+        handler.removeCallbacks(focusUnlockRunnable);
+        sessionGeneration++;
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        request = null;
+    }
+
+    @Override
+    public void setPreviewCameraId(int cameraId) {
+        requestedCameraId = cameraId;
+    }
+
+    @Override
+    public int getPreviewCameraId() {
+        return requestedCameraId;
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        Integer facing = getCharacteristic(CameraCharacteristics.LENS_FACING);
+        return facing != null && facing == CameraMetadata.LENS_FACING_FRONT;
+    }
+
+    @Override
+    public int getSensorOrientation() {
+        Integer orientation = getCharacteristic(CameraCharacteristics.SENSOR_ORIENTATION);
+        return orientation == null ? 90 : orientation;
+    }
+
+    /**
+     * The camera rotates the preview on a SurfaceView itself.
+     */
+    @Override
+    public void setDisplayOrientation(int degrees) {
+    }
+
+    @Override
+    public void setTorchEnabled(boolean enabled) {
+        if (torchEnabled != enabled) {
+            torchEnabled = enabled;
+            if (request != null) {
+                request.set(CaptureRequest.FLASH_MODE, enabled
+                        ? CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+                setRepeatingRequest();
+            }
+        }
+    }
+
+    @Override
+    public void setExposureCompensation(float ev) {
+        Range<Integer> range =
+                getCharacteristic(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        Rational step = getCharacteristic(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+        int steps = 0;
+        if (range != null && step != null && step.floatValue() > 0) {
+            steps = range.clamp(Math.round(ev / step.floatValue()));
+        }
+        if (exposureCompensation != steps) {
+            exposureCompensation = steps;
+            if (request != null) {
+                request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, steps);
+                setRepeatingRequest();
+            }
+        }
+    }
+
+    @Override
+    public void setAutofocusInterval(long autofocusIntervalInMs) {
+        if (autofocusIntervalInMs <= 0) {
+            throw new IllegalArgumentException("AutoFocusInterval must be greater than 0.");
+        }
+        this.autofocusIntervalInMs = autofocusIntervalInMs;
+    }
+
+    /**
+     * Starts a focus scan. With auto focus the next periodic scan is pushed back by the
+     * interval. With continuous focus the scan locks the focus, which is released after
+     * {@link #FOCUS_LOCK_MS} so the camera goes back to focusing on its own.
+     */
+    @Override
+    public void forceAutoFocus() {
+        if (session == null || request == null
+                || focusMode == CameraMetadata.CONTROL_AF_MODE_OFF) {
+            return;
+        }
+        if (!trigger(CameraMetadata.CONTROL_AF_TRIGGER_START)) {
+            return;
+        }
+        if (focusMode == CameraMetadata.CONTROL_AF_MODE_AUTO) {
+            handler.removeCallbacks(autoFocusRunnable);
+            handler.postDelayed(autoFocusRunnable, autofocusIntervalInMs);
+        } else {
+            handler.removeCallbacks(focusUnlockRunnable);
+            handler.postDelayed(focusUnlockRunnable, FOCUS_LOCK_MS);
+        }
+    }
+
+    /**
+     * Meters focus and exposure on the area from the next frame on, with a focus scan in auto
+     * focus since the lens does not move on its own.
+     */
+    @Override
+    public void setFocusArea(Rect area) {
+        focusArea = area;
+        if (session == null || request == null) {
+            return;
+        }
+        setRegions();
+        setRepeatingRequest();
+        if (focusMode == CameraMetadata.CONTROL_AF_MODE_AUTO) {
+            forceAutoFocus();
+        }
+    }
+
+    private void setRegions() {
+        Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        MeteringRectangle[] regions = null;
+        if (focusArea != null && activeArray != null && frameSize != null) {
+            regions = new MeteringRectangle[]{new MeteringRectangle(
+                    FocusAreas.toActiveArray(focusArea, frameSize.getWidth(),
+                            frameSize.getHeight(), activeArray.width(), activeArray.height()),
+                    FocusAreas.WEIGHT)};
+        }
+        if (hasRegions(CameraCharacteristics.CONTROL_MAX_REGIONS_AF)) {
+            request.set(CaptureRequest.CONTROL_AF_REGIONS,
+                    regions != null ? regions : defaultAfRegions);
+        }
+        if (hasRegions(CameraCharacteristics.CONTROL_MAX_REGIONS_AE)) {
+            request.set(CaptureRequest.CONTROL_AE_REGIONS,
+                    regions != null ? regions : defaultAeRegions);
+        }
+    }
+
+    private boolean hasRegions(CameraCharacteristics.Key<Integer> maxRegions) {
+        Integer count = characteristics.get(maxRegions);
+        return count != null && count > 0;
+    }
+
+    private boolean trigger(int afTrigger) {
+        try {
+            request.set(CaptureRequest.CONTROL_AF_TRIGGER, afTrigger);
+            session.capture(request.build(), null, handler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Unexpected exception while focusing", e);
+            return false;
+        } finally {
+            request.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    private final Runnable autoFocusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            forceAutoFocus();
+        }
+    };
+
+    private final Runnable focusUnlockRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (session != null && request != null) {
+                trigger(CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+            }
+        }
+    };
+
+    private final CameraDevice.StateCallback deviceCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            if (!opening) {
+                // Closed while opening
+                camera.close();
+                return;
+            }
+            opening = false;
+            device = camera;
+            if (previewing) {
+                createSession();
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            camera.close();
+            if (device == camera) {
+                device = null;
+                session = null;
+                request = null;
+            }
+            opening = false;
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.w(TAG, "Camera error " + error);
+            onDisconnected(camera);
+        }
+    };
+
+    private void createSession() {
+        Surface previewSurface = holder == null ? null : holder.getSurface();
+        if (previewSurface == null || !previewSurface.isValid() || imageReader == null) {
+            return;
+        }
+        final int generation = ++sessionGeneration;
+        try {
+            device.createCaptureSession(Arrays.asList(previewSurface, imageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession configured) {
+                            if (generation != sessionGeneration || !previewing
+                                    || device == null) {
+                                configured.close();
+                                return;
+                            }
+                            session = configured;
+                            startRepeatingRequest();
+                            if (!profileSaved) {
+                                profileSaved = true;
+                                profileStore.save(BACKEND, cameraId, viewWidth, viewHeight,
+                                        profile);
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession failed) {
+                            Log.w(TAG, "Capture session configuration failed");
+                            // The next open negotiates again
+                            profileStore.remove(BACKEND, cameraId, viewWidth, viewHeight);
+                        }
+                    }, handler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Unexpected exception while creating the capture session", e);
+        }
+    }
+
+    private void startRepeatingRequest() {
+        try {
+            request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Unexpected exception while creating the capture request", e);
+            return;
+        }
+        request.addTarget(holder.getSurface());
+        request.addTarget(imageReader.getSurface());
+        defaultAfRegions = request.get(CaptureRequest.CONTROL_AF_REGIONS);
+        defaultAeRegions = request.get(CaptureRequest.CONTROL_AE_REGIONS);
+        // Focus and exposure are driven by the request alone, see the class comment
+        request.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        request.set(CaptureRequest.CONTROL_AF_MODE, focusMode);
+        // The torch needs auto exposure without auto flash
+        request.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
+        request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, exposureCompensation);
+        if (fpsRange != null) {
+            request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        request.set(CaptureRequest.FLASH_MODE, torchEnabled
+                ? CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+        setRegions();
+        setRepeatingRequest();
+        if (focusMode == CameraMetadata.CONTROL_AF_MODE_AUTO) {
+            handler.removeCallbacks(autoFocusRunnable);
+            handler.post(autoFocusRunnable);
+        }
+    }
+
+    private void setRepeatingRequest() {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.setRepeatingRequest(request.build(), null, handler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Unexpected exception while starting the preview", e);
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener imageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image;
+                    try {
+                        image = reader.acquireLatestImage();
+                    } catch (IllegalStateException e) {
+                        // Every image is held by the decoder, the frame is dropped
+                        return;
+                    }
+                    if (image == null) {
+                        return;
+                    }
+                    FrameCallback frameCallback = callback;
+                    Frame frame = frameCallback == null ? null : lend(image);
+                    if (frame == null) {
+                        image.close();
+                        return;
+                    }
+                    // The Y plane of YUV_420_888 always has a pixel stride of 1
+                    Image.Plane luminance = image.getPlanes()[0];
+                    frame.setPlane(luminance.getBuffer(), luminance.getRowStride(),
+                            image.getWidth(), image.getHeight());
+                    frameCallback.onFrame(frame, Camera2Backend.this);
+                }
+            };
+
+    private synchronized Frame lend(Image image) {
+        if (readerClosed) {
+            return null;
+        }
+        for (int i = 0; i < MAX_IMAGES; i++) {
+            if (images[i] == null) {
+                images[i] = image;
+                return frames[i];
+            }
+        }
+        return null;
+    }
+
+    private int lentCount() {
+        int count = 0;
+        for (Image image : images) {
+            if (image != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private <T> T getCharacteristic(CameraCharacteristics.Key<T> key) {
+        try {
+            CameraCharacteristics cameraCharacteristics = characteristics;
+            if (cameraCharacteristics == null) {
+                String id = selectCameraId(cameraManager, requestedCameraId);
+                if (id == null) {
+                    return null;
+                }
+                cameraCharacteristics = characteristicsOf(cameraManager, id);
+            }
+            return cameraCharacteristics.get(key);
+        } catch (CameraAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the characteristics of the camera, fetched from the camera service once per process
+     * since they never change
+     */
+    private static CameraCharacteristics characteristicsOf(CameraManager manager, String id)
+            throws CameraAccessException {
+        synchronized (CHARACTERISTICS) {
+            CameraCharacteristics characteristics = CHARACTERISTICS.get(id);
+            if (characteristics == null) {
+                characteristics = manager.getCameraCharacteristics(id);
+                CHARACTERISTICS.put(id, characteristics);
+            }
+            return characteristics;
+        }
+    }
+
+    private static String selectCameraId(CameraManager manager, int requestedCameraId)
+            throws CameraAccessException {
+        String[] ids = manager.getCameraIdList();
+        if (requestedCameraId >= 0) {
+            return requestedCameraId < ids.length ? ids[requestedCameraId] : null;
+        }
+        for (String id : ids) {
+            Integer facing = characteristicsOf(manager, id)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        return ids.length > 0 ? ids[0] : null;
+    }
+
+    /**
+     * Chooses the frame size, focus mode and frame rate range from what the camera supports.
+     */
+    private void negotiate(StreamConfigurationMap map) {
+        frameSize = chooseFrameSize(map.getOutputSizes(ImageFormat.YUV_420_888), previewSize,
+                profileStore.getDecodeCost());
+        focusMode = chooseFocusMode();
+        fpsRange = chooseFpsRange();
+        profile = new CameraProfile(frameSize.getWidth(), frameSize.getHeight(),
+                String.valueOf(focusMode), fpsRange == null ? 0 : fpsRange.getLower(),
+                fpsRange == null ? 0 : fpsRange.getUpper(), profileStore.getDecodeCost());
+    }
+
+    private void applyProfile() {
+        frameSize = new Size(profile.getWidth(), profile.getHeight());
+        try {
+            focusMode = Integer.parseInt(profile.getFocusMode());
+        } catch (NumberFormatException e) {
+            focusMode = chooseFocusMode();
+        }
+        fpsRange = profile.hasFpsRange()
+                ? new Range<>(profile.getMinFps(), profile.getMaxFps()) : null;
+    }
+
+    private int chooseFocusMode() {
+        int[] modes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (contains(modes, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE)) {
+            return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+        }
+        if (contains(modes, CameraMetadata.CONTROL_AF_MODE_AUTO)) {
+            return CameraMetadata.CONTROL_AF_MODE_AUTO;
+        }
+        return CameraMetadata.CONTROL_AF_MODE_OFF;
+    }
+
+    /**
+     * @return the frame rate range with the highest rate up to 30 fps, and the lowest rate
+     * closest to 15 fps so exposures stay short enough for a moving code
+     */
+    private Range<Integer> chooseFpsRange() {
+        Range<Integer>[] ranges =
+                characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        Range<Integer> best = null;
+        if (ranges == null) {
+            return null;
+        }
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() > TARGET_FPS) {
+                continue;
+            }
+            if (best == null || range.getUpper() > best.getUpper()
+                    || range.getUpper().equals(best.getUpper())
+                    && Math.abs(range.getLower() - TARGET_FPS / 2)
+                    < Math.abs(best.getLower() - TARGET_FPS / 2)) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the largest size up to {@link #MAX_PREVIEW_PIXELS} with the aspect ratio closest
+     * to the view, sizes are in sensor orientation
+     */
+    private static Size choosePreviewSize(Size[] sizes, int viewWidth, int viewHeight) {
+        float viewRatio = viewWidth == 0 || viewHeight == 0 ? 4f / 3
+                : (float) Math.max(viewWidth, viewHeight) / Math.min(viewWidth, viewHeight);
+        return closest(sizes, viewRatio, MAX_PREVIEW_PIXELS);
+    }
+
+    /**
+     * @return the size {@link PreviewSizePolicy} picks up to {@link #MAX_FRAME_PIXELS} with the
+     * aspect ratio of the preview, so frames see what the preview shows
+     */
+    private static Size chooseFrameSize(Size[] sizes, Size previewSize, long nanosPerPixel) {
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i].getWidth();
+            heights[i] = sizes[i].getHeight();
+        }
+        PreviewSizePolicy policy = new PreviewSizePolicy(MIN_FRAME_PIXELS, MAX_FRAME_PIXELS);
+        policy.setDecodeCost(nanosPerPixel);
+        int best = policy.choose(widths, heights, previewSize.getWidth(), previewSize.getHeight());
+        return best >= 0 ? sizes[best] : closest(sizes,
+                (float) previewSize.getWidth() / previewSize.getHeight(), MAX_FRAME_PIXELS);
+    }
+
+    private static Size closest(Size[] sizes, float ratio, int maxPixels) {
+        Size best = null;
+        float bestDistortion = Float.MAX_VALUE;
+        Size smallest = null;
+        for (Size size : sizes) {
+            int pixels = size.getWidth() * size.getHeight();
+            if (smallest == null || pixels < smallest.getWidth() * smallest.getHeight()) {
+                smallest = size;
+            }
+            if (pixels > maxPixels) {
+                continue;
+            }
+            float distortion = Math.abs((float) size.getWidth() / size.getHeight() - ratio);
+            // Ratios within 0.01 are the same ratio, then the largest size wins
+            if (best == null || distortion < bestDistortion - 0.01f
+                    || Math.abs(distortion - bestDistortion) <= 0.01f
+                    && pixels > best.getWidth() * best.getHeight()) {
+                best = size;
+                bestDistortion = Math.min(distortion, bestDistortion);
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        if (values != null) {
+            for (int v : values) {
+                if (v == value) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+package tech.gentleflow.qr_scan.camera;
+
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+
+import tech.gentleflow.qr_scan.frame.FrameSource;
+
+/**
+ * A camera showing its preview on a surface and delivering frames to decode, as seen by
+ * {@link tech.gentleflow.qr_scan.readerView.QRCodeReaderView}.
+ * <p>
+ * Frames are in sensor orientation. Their size, {@link #getFrameWidth()} by
+ * {@link #getFrameHeight()}, is known once the camera is open and covers the same field of view
+ * as the preview, though it may be smaller.
+ * <p>
+ * The camera is driven from one thread, the thread that opens it, and the callbacks of the
+ * device arrive on its looper. The getters of the frame size and orientation, {@link #isOpen()}
+ * and {@link #releaseFrame} may be called from any thread. {@link AsyncCameraBackend} runs a
+ * backend on a thread of its own so the main thread never waits for the camera.
+ */
+public interface CameraBackend extends FrameSource {
+
+    /**
+     * Opens the camera and picks the preview and frame sizes for a view of the given size,
+     * before the surface exists, so {@link #open} only has to attach the surface.
+     *
+     * @throws IOException if the camera cannot be opened
+     */
+    void prepare(int viewWidth, int viewHeight) throws IOException;
+
+    /**
+     * Opens the camera and picks the preview and frame sizes for a view of the given size,
+     * unless it was prepared already.
+     *
+     * @param holder the surface the preview is drawn into
+     * @throws IOException if the camera cannot be opened
+     */
+    void open(SurfaceHolder holder, int viewWidth, int viewHeight) throws IOException;
+
+    boolean isOpen();
+
+    /**
+     * Releases the camera, the backend may be opened again.
+     */
+    void close();
+
+    void startPreview();
+
+    void stopPreview();
+
+    /**
+     * @param cameraId camera to open next time, numbered like {@code Camera.open(int)}, a
+     *                 negative value picks the first back camera
+     */
+    void setPreviewCameraId(int cameraId);
+
+    int getPreviewCameraId();
+
+    /**
+     * @return true if the camera to open faces the user, its frames are mirrored on screen
+     */
+    boolean isFrontFacing();
+
+    /**
+     * @return clockwise rotation of the sensor from the natural orientation of the device
+     */
+    int getSensorOrientation();
+
+    /**
+     * @param degrees clockwise rotation of the preview on the display
+     */
+    void setDisplayOrientation(int degrees);
+
+    void setTorchEnabled(boolean enabled);
+
+    /**
+     * @param ev exposure compensation in EV, rounded to the steps of the camera and clamped to
+     *           its range, 0 for none. Forgotten when the camera is closed.
+     */
+    void setExposureCompensation(float ev);
+
+    void setAutofocusInterval(long autofocusIntervalInMs);
+
+    void forceAutoFocus();
+
+    /**
+     * Focuses and meters on a part of the frames rather than on the whole scene, where the
+     * camera supports it. Forgotten when the camera is closed.
+     *
+     * @param area part of the frames in frame coordinates, null for the whole field of view
+     */
+    void setFocusArea(Rect area);
+}
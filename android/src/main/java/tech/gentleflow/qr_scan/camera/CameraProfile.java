@@ -0,0 +1,110 @@
+package tech.gentleflow.qr_scan.camera;
+
+/**
+ * What was negotiated with a camera for a view: the frame size, the focus mode and the frame
+ * rate range, with the decode cost the size was chosen for. Kept by {@link CameraProfileStore}
+ * so the next open can apply it without going through the supported values again.
+ */
+public final class CameraProfile {
+
+    private final int width;
+    private final int height;
+    private final String focusMode;
+    private final int minFps;
+    private final int maxFps;
+    private final long nanosPerPixel;
+
+    /**
+     * @param focusMode     focus mode in the terms of the backend, null when none was set
+     * @param minFps        lowest frame rate in the unit of the backend, 0 when none was set
+     * @param maxFps        highest frame rate in the unit of the backend, 0 when none was set
+     * @param nanosPerPixel decode cost the size was chosen for
+     */
+    public CameraProfile(int width, int height, String focusMode, int minFps, int maxFps,
+                         long nanosPerPixel) {
+        this.width = width;
+        this.height = height;
+        this.focusMode = focusMode;
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+        this.nanosPerPixel = nanosPerPixel;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFocusMode() {
+        return focusMode;
+    }
+
+    public int getMinFps() {
+        return minFps;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public boolean hasFpsRange() {
+        return maxFps > 0;
+    }
+
+    public long getNanosPerPixel() {
+        return nanosPerPixel;
+    }
+
+    /**
+     * @return the profile as one line, read back by {@link #parse(String)}
+     */
+    String encode() {
+        return width + "," + height + "," + (focusMode == null ? "" : focusMode) + ","
+                + minFps + "," + maxFps + "," + nanosPerPixel;
+    }
+
+    /**
+     * @return the profile, null if the line is not one written by {@link #encode()}
+     */
+    static CameraProfile parse(String line) {
+        if (line == null) {
+            return null;
+        }
+        String[] fields = line.split(",", -1);
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            return new CameraProfile(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                    fields[2].isEmpty() ? null : fields[2], Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CameraProfile)) {
+            return false;
+        }
+        CameraProfile other = (CameraProfile) o;
+        return width == other.width && height == other.height
+                && (focusMode == null ? other.focusMode == null : focusMode.equals(other.focusMode))
+                && minFps == other.minFps && maxFps == other.maxFps
+                && nanosPerPixel == other.nanosPerPixel;
+    }
+
+    @Override
+    public int hashCode() {
+        return encode().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " focus=" + focusMode + " fps=" + minFps + "-" + maxFps;
+    }
+}
@@ -0,0 +1,101 @@
+package tech.gentleflow.qr_scan.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Keeps a {@link CameraProfile} per device model, camera and view aspect ratio in the shared
+ * preferences of the app, along with the decode cost measured while scanning.
+ * <p>
+ * The model is part of the key since app data can be restored from a backup onto another
+ * device. Everything is forgotten when the build of the system changes, which may change what
+ * the cameras support, or when the way profiles are negotiated changes. A profile whose size
+ * was chosen for a decode cost too far from the current one is not returned, so the size is
+ * chosen again.
+ */
+public final class CameraProfileStore {
+
+    private static final String PREFERENCES = "tech.gentleflow.qr_scan.camera_profiles";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_DECODE_COST = "decode_ns_per_px";
+    private static final String PROFILE_PREFIX = "profile/";
+    /**
+     * Raised when the way profiles are negotiated changes, which forgets the saved ones
+     */
+    private static final int VERSION = 2;
+    /**
+     * A decode cost this many times higher or lower than the one a profile was chosen for makes
+     * the profile stale
+     */
+    private static final float MAX_COST_DRIFT = 1.5f;
+
+    private final SharedPreferences preferences;
+
+    public CameraProfileStore(Context context) {
+        preferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String fingerprint = Build.FINGERPRINT + '#' + VERSION;
+        if (!fingerprint.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            preferences.edit().clear().putString(KEY_FINGERPRINT, fingerprint).apply();
+        }
+    }
+
+    /**
+     * @param backend  name of the camera API, profiles of different APIs are kept apart
+     * @param cameraId id of the camera in that API
+     * @return the profile saved for a view of the same aspect ratio, null if there is none or
+     * it is stale
+     */
+    public CameraProfile load(String backend, String cameraId, int viewWidth, int viewHeight) {
+        CameraProfile profile = CameraProfile.parse(
+                preferences.getString(key(backend, cameraId, viewWidth, viewHeight), null));
+        if (profile == null) {
+            return null;
+        }
+        long cost = getDecodeCost();
+        if (profile.getNanosPerPixel() * MAX_COST_DRIFT < cost
+                || cost * MAX_COST_DRIFT < profile.getNanosPerPixel()) {
+            return null;
+        }
+        return profile;
+    }
+
+    public void save(String backend, String cameraId, int viewWidth, int viewHeight,
+                     CameraProfile profile) {
+        preferences.edit()
+                .putString(key(backend, cameraId, viewWidth, viewHeight), profile.encode())
+                .apply();
+    }
+
+    /**
+     * Forgets a profile the camera refused.
+     */
+    public void remove(String backend, String cameraId, int viewWidth, int viewHeight) {
+        preferences.edit().remove(key(backend, cameraId, viewWidth, viewHeight)).apply();
+    }
+
+    /**
+     * @return the decode cost per frame pixel measured last, or
+     * {@link PreviewSizePolicy#DEFAULT_NANOS_PER_PIXEL}
+     */
+    public long getDecodeCost() {
+        return preferences.getLong(KEY_DECODE_COST, PreviewSizePolicy.DEFAULT_NANOS_PER_PIXEL);
+    }
+
+    /**
+     * @param nanosPerPixel decode time divided by the pixels of the frame, ignored if not positive
+     */
+    public void setDecodeCost(long nanosPerPixel) {
+        if (nanosPerPixel > 0 && nanosPerPixel != getDecodeCost()) {
+            preferences.edit().putLong(KEY_DECODE_COST, nanosPerPixel).apply();
+        }
+    }
+
+    private static String key(String backend, String cameraId, int viewWidth, int viewHeight) {
+        // Views of about the same shape pick the same sizes
+        int aspect = viewWidth <= 0 || viewHeight <= 0 ? 0
+                : Math.round(100 * PreviewSizePolicy.ratio(viewWidth, viewHeight));
+        return PROFILE_PREFIX + Build.MODEL + '/' + backend + '/' + cameraId + '/' + aspect;
+    }
+}
@@ -0,0 +1,80 @@
+package tech.gentleflow.qr_scan.camera;
+
+import android.graphics.Rect;
+
+/**
+ * Maps an area of the frames, where codes are looked for, to the coordinates the camera APIs
+ * take focus and metering areas in.
+ * <p>
+ * Frames are in sensor orientation and show the whole field of view of the preview, so the
+ * mapping is a scale and an offset, with no rotation or mirroring: the legacy API takes areas
+ * in sensor orientation as well, from -1000 to 1000 across the field of view, and Camera2 in
+ * pixels of the active array of the sensor, of which the frames show the centered part with
+ * their aspect ratio. Areas are grown to {@link #MIN_AREA_SHARE} of the field of view, smaller
+ * ones leave too few pixels to meter on.
+ */
+public final class FocusAreas {
+
+    /**
+     * Weight of the only area, the largest the APIs accept
+     */
+    public static final int WEIGHT = 1000;
+    /**
+     * Smallest side of an area, as a share of the side of the field of view
+     */
+    static final float MIN_AREA_SHARE = 0.1f;
+    private static final int LEGACY_MIN = -1000;
+    private static final int LEGACY_MAX = 1000;
+
+    private FocusAreas() {
+    }
+
+    /**
+     * @param area area of a frame of the given size, clamped to the frame
+     * @return the area in the -1000..1000 coordinates of {@code Camera.Area}
+     */
+    public static Rect toCameraArea(Rect area, int frameWidth, int frameHeight) {
+        return map(area, frameWidth, frameHeight,
+                new Rect(LEGACY_MIN, LEGACY_MIN, LEGACY_MAX, LEGACY_MAX));
+    }
+
+    /**
+     * @param area        area of a frame of the given size, clamped to the frame
+     * @param arrayWidth  width of the {@code SENSOR_INFO_ACTIVE_ARRAY_SIZE} of the camera
+     * @param arrayHeight height of the active array
+     * @return the area in active array coordinates, which start at 0, for a
+     * {@code MeteringRectangle}
+     */
+    public static Rect toActiveArray(Rect area, int frameWidth, int frameHeight, int arrayWidth,
+                                     int arrayHeight) {
+        int width = arrayWidth;
+        int height = arrayHeight;
+        // The frame is cropped from the array to its own aspect ratio
+        if ((long) width * frameHeight > (long) height * frameWidth) {
+            width = (int) ((long) height * frameWidth / frameHeight);
+        } else {
+            height = (int) ((long) width * frameHeight / frameWidth);
+        }
+        int left = (arrayWidth - width) / 2;
+        int top = (arrayHeight - height) / 2;
+        return map(area, frameWidth, frameHeight, new Rect(left, top, left + width, top + height));
+    }
+
+    private static Rect map(Rect area, int frameWidth, int frameHeight, Rect field) {
+        int left = scale(Math.max(area.left, 0), frameWidth, field.left, field.width());
+        int top = scale(Math.max(area.top, 0), frameHeight, field.top, field.height());
+        int right = scale(Math.min(area.right, frameWidth), frameWidth, field.left, field.width());
+        int bottom = scale(Math.min(area.bottom, frameHeight), frameHeight, field.top,
+                field.height());
+        int width = Math.max(right - left, Math.round(field.width() * MIN_AREA_SHARE));
+        int height = Math.max(bottom - top, Math.round(field.height() * MIN_AREA_SHARE));
+        // Grown around the same center, then moved back into the field
+        left = Math.min(Math.max((left + right - width) / 2, field.left), field.right - width);
+        top = Math.min(Math.max((top + bottom - height) / 2, field.top), field.bottom - height);
+        return new Rect(left, top, left + width, top + height);
+    }
+
+    private static int scale(int value, int size, int fieldStart, int fieldSize) {
+        return fieldStart + (int) ((long) value * fieldSize / size);
+    }
+}
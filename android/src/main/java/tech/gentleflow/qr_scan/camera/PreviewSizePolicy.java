@@ -0,0 +1,151 @@
+package tech.gentleflow.qr_scan.camera;
+
+/**
+ * Picks the size of the frames to decode from what a decode costs on this device and the
+ * resolution needed to read the codes looked for.
+ * <p>
+ * A code of {@link #setTargetCode(int, float) n modules} spanning a share of the short side of
+ * the frame needs that short side to hold n / share modules of {@link #MIN_MODULE_PIXELS}
+ * pixels each. Larger frames resolve more but take longer to decode: a decode costs about the
+ * same per pixel, measured while scanning, and should fit in {@link #FRAME_BUDGET_NANOS}. Among
+ * the sizes with an aspect ratio close to the view, the smallest one resolving the code within
+ * the budget wins. When none does, the largest within the budget, else the smallest of them.
+ * <p>
+ * Sizes are in sensor orientation, width and height may be swapped from the view. Plain Java,
+ * not thread safe.
+ */
+public final class PreviewSizePolicy {
+
+    /**
+     * Cost of a decode per frame pixel before one was measured, a mid range phone decoding
+     * 1280x720 in about 35 ms
+     */
+    public static final long DEFAULT_NANOS_PER_PIXEL = 40;
+    /**
+     * Time a decode may take, about 20 decodes per second
+     */
+    static final long FRAME_BUDGET_NANOS = 50000000L;
+    /**
+     * Pixels a module needs to be told apart after binarization
+     */
+    static final float MIN_MODULE_PIXELS = 3f;
+    /**
+     * Sizes whose aspect ratio is this close to the best one show the same field of view
+     */
+    static final float ASPECT_TOLERANCE = 0.05f;
+    /**
+     * Version 6, with its quiet zone
+     */
+    private static final int DEFAULT_MODULES = 41 + 8;
+    private static final float DEFAULT_CODE_SHARE = 0.3f;
+
+    private final int minPixels;
+    private final int maxPixels;
+    private long nanosPerPixel = DEFAULT_NANOS_PER_PIXEL;
+    private int modules = DEFAULT_MODULES;
+    private float codeShare = DEFAULT_CODE_SHARE;
+
+    /**
+     * @param minPixels sizes smaller than this are never picked
+     * @param maxPixels sizes larger than this are never picked
+     */
+    public PreviewSizePolicy(int minPixels, int maxPixels) {
+        this.minPixels = minPixels;
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * @param nanosPerPixel measured decode time divided by the pixels of the frame, 0 or less
+     *                      for {@link #DEFAULT_NANOS_PER_PIXEL}
+     */
+    public void setDecodeCost(long nanosPerPixel) {
+        this.nanosPerPixel = nanosPerPixel > 0 ? nanosPerPixel : DEFAULT_NANOS_PER_PIXEL;
+    }
+
+    public long getDecodeCost() {
+        return nanosPerPixel;
+    }
+
+    /**
+     * @param modules modules across the code, quiet zone included
+     * @param share   share of the short side of the frame the code spans, between 0 and 1
+     */
+    public void setTargetCode(int modules, float share) {
+        if (modules <= 0 || share <= 0 || share > 1) {
+            throw new IllegalArgumentException("Bad target code: " + modules + ", " + share);
+        }
+        this.modules = modules;
+        this.codeShare = share;
+    }
+
+    /**
+     * @return the short side a frame needs to resolve the target code
+     */
+    public int getRequiredShortSide() {
+        return (int) Math.ceil(modules * MIN_MODULE_PIXELS / codeShare);
+    }
+
+    /**
+     * @param widths     widths of the supported sizes
+     * @param heights    heights of the supported sizes, in the same order
+     * @param viewWidth  width of the view, 0 when unknown
+     * @param viewHeight height of the view, 0 when unknown
+     * @return index of the size to use, -1 when none is within the pixel bounds
+     */
+    public int choose(int[] widths, int[] heights, int viewWidth, int viewHeight) {
+        float viewRatio = viewWidth <= 0 || viewHeight <= 0 ? 4f / 3 : ratio(viewWidth, viewHeight);
+        float bestDistortion = Float.MAX_VALUE;
+        for (int i = 0; i < widths.length; i++) {
+            if (inBounds(widths[i], heights[i])) {
+                bestDistortion = Math.min(bestDistortion,
+                        Math.abs(ratio(widths[i], heights[i]) - viewRatio));
+            }
+        }
+        if (bestDistortion == Float.MAX_VALUE) {
+            return -1;
+        }
+
+        int requiredShortSide = getRequiredShortSide();
+        int resolving = -1;
+        int affordable = -1;
+        int smallest = -1;
+        for (int i = 0; i < widths.length; i++) {
+            if (!inBounds(widths[i], heights[i])
+                    || Math.abs(ratio(widths[i], heights[i]) - viewRatio)
+                    > bestDistortion + ASPECT_TOLERANCE) {
+                continue;
+            }
+            long pixels = (long) widths[i] * heights[i];
+            if (smallest < 0 || pixels < pixels(widths, heights, smallest)) {
+                smallest = i;
+            }
+            if (pixels * nanosPerPixel > FRAME_BUDGET_NANOS) {
+                continue;
+            }
+            if (affordable < 0 || pixels > pixels(widths, heights, affordable)) {
+                affordable = i;
+            }
+            if (Math.min(widths[i], heights[i]) >= requiredShortSide
+                    && (resolving < 0 || pixels < pixels(widths, heights, resolving))) {
+                resolving = i;
+            }
+        }
+        return resolving >= 0 ? resolving : affordable >= 0 ? affordable : smallest;
+    }
+
+    private boolean inBounds(int width, int height) {
+        long pixels = (long) width * height;
+        return pixels >= minPixels && pixels <= maxPixels;
+    }
+
+    private static long pixels(int[] widths, int[] heights, int index) {
+        return (long) widths[index] * heights[index];
+    }
+
+    /**
+     * @return long side over short side, so sizes in sensor and view orientation compare
+     */
+    static float ratio(int width, int height) {
+        return (float) Math.max(width, height) / Math.min(width, height);
+    }
+}
@@ -0,0 +1,384 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.common.DecoderResult;
+import com.google.zxing.common.DetectorResult;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.MultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.google.zxing.qrcode.decoder.Decoder;
+import com.google.zxing.qrcode.decoder.QRCodeDecoderMetaData;
+import com.google.zxing.qrcode.detector.Detector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Readers and binarizer memory of one decoding thread, kept across frames and images.
+ * <p>
+ * The {@link MultiFormatReader} is configured once per {@link DecodeOptions} and then used with
+ * {@link MultiFormatReader#decodeWithState}, and the binarizer works in a reused
+ * {@link ReusableHybridBinarizer.Scratch}, so a decode attempt allocates next to nothing in
+ * steady state. Not thread safe, every thread needs its own context.
+ */
+public final class DecodeContext {
+
+    /**
+     * One way of turning a luminance source into a bit matrix.
+     */
+    public enum Pass {
+        HYBRID,
+        GLOBAL_HISTOGRAM,
+        INVERTED
+    }
+
+    private final ReusableHybridBinarizer.Scratch scratch = new ReusableHybridBinarizer.Scratch();
+    private final QRCodeReader qrCodeReader = new QRCodeReader();
+    private final Decoder qrCodeDecoder = new Decoder();
+    private final MultiFormatReader multiFormatReader = new MultiFormatReader();
+    private final QRCodeMultiReader qrCodeMultiReader = new QRCodeMultiReader();
+    private final GenericMultipleBarcodeReader multipleBarcodeReader =
+            new GenericMultipleBarcodeReader(new Reader() {
+                // Keeps the readers set up by setOptions instead of rebuilding them per crop
+                @Override
+                public Result decode(BinaryBitmap image) throws NotFoundException {
+                    return multiFormatReader.decodeWithState(image);
+                }
+
+                @Override
+                public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints)
+                        throws NotFoundException {
+                    return multiFormatReader.decodeWithState(image);
+                }
+
+                @Override
+                public void reset() {
+                    multiFormatReader.reset();
+                }
+            });
+    private final ResultPointCallback pointCallback = new ResultPointCallback() {
+        @Override
+        public void foundPossibleResultPoint(ResultPoint point) {
+            possiblePointCount++;
+        }
+    };
+    private int possiblePointCount;
+    private DecodeOptions options;
+    private Map<DecodeHintType, Object> requestedHints;
+    private Map<DecodeHintType, Object> hints;
+    private DecodeMetrics metrics;
+    private AtomicBoolean cancelled;
+
+    public DecodeContext(DecodeOptions options) {
+        setOptions(options);
+    }
+
+    public void setOptions(DecodeOptions options) {
+        setOptions(options, options.getHints());
+    }
+
+    /**
+     * @param hints hints to use instead of the ones of the options
+     */
+    public void setOptions(DecodeOptions options, Map<DecodeHintType, Object> hints) {
+        if (options.equals(this.options) && hints == this.requestedHints) {
+            return;
+        }
+        this.options = options;
+        this.requestedHints = hints;
+        Map<DecodeHintType, Object> withCallback = new EnumMap<>(DecodeHintType.class);
+        if (hints != null) {
+            withCallback.putAll(hints);
+        }
+        withCallback.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, pointCallback);
+        this.hints = withCallback;
+        multiFormatReader.setHints(withCallback);
+    }
+
+    public DecodeOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @param metrics where binarization, detection, decoding and fallback passes are timed,
+     *                null to time nothing
+     */
+    public void setMetrics(DecodeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * A reader cannot be stopped midway, so the flag is checked between the steps of a decode:
+     * before each pass and between binarizing and reading. Once it is set the decode gives up
+     * at the next check and finds nothing.
+     *
+     * @param cancelled set by another thread to stop the decode, null to never stop
+     */
+    public void setCancellation(AtomicBoolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return how many possible result points, e.g. QR finder patterns, the readers reported
+     * since the last call to {@link #decode(LuminanceSource)} or
+     * {@link #decodeMultiple(LuminanceSource)} started. A failed decode with a few of them
+     * usually means a code is coming into view.
+     */
+    public int getPossiblePointCount() {
+        return possiblePointCount;
+    }
+
+    /**
+     * Runs the passes of the configured effort until one of them finds a code.
+     *
+     * @return the result or null if nothing was found
+     */
+    public Result decode(LuminanceSource source) {
+        possiblePointCount = 0;
+        Result result = decode(source, Pass.HYBRID);
+        if (result == null && options.getEffort() == DecodeOptions.Effort.THOROUGH) {
+            long start = startTimer();
+            result = decode(source, Pass.GLOBAL_HISTOGRAM);
+            stopTimer(DecodeMetrics.Stage.FALLBACK, start);
+        }
+        if (result == null && options.getEffort() != DecodeOptions.Effort.FAST) {
+            long start = startTimer();
+            result = decode(source, Pass.INVERTED);
+            stopTimer(DecodeMetrics.Stage.FALLBACK, start);
+        }
+        return result;
+    }
+
+    /**
+     * Runs a single pass.
+     *
+     * @return the result or null if nothing was found
+     */
+    public Result decode(LuminanceSource source, Pass pass) {
+        if (isCancelled()) {
+            return null;
+        }
+        BinaryBitmap bitmap = new BinaryBitmap(binarizer(source, pass));
+        if (!binarize(bitmap) || isCancelled()) {
+            return null;
+        }
+        return decode(bitmap);
+    }
+
+    /**
+     * Finds every code of the image in one go, running the passes of the configured effort until
+     * one of them finds something.
+     *
+     * @return the results or null if nothing was found
+     */
+    public Result[] decodeMultiple(LuminanceSource source) {
+        possiblePointCount = 0;
+        Result[] results = decodeMultiple(source, Pass.HYBRID);
+        if (results == null && options.getEffort() == DecodeOptions.Effort.THOROUGH) {
+            long start = startTimer();
+            results = decodeMultiple(source, Pass.GLOBAL_HISTOGRAM);
+            stopTimer(DecodeMetrics.Stage.FALLBACK, start);
+        }
+        if (results == null && options.getEffort() != DecodeOptions.Effort.FAST) {
+            long start = startTimer();
+            results = decodeMultiple(source, Pass.INVERTED);
+            stopTimer(DecodeMetrics.Stage.FALLBACK, start);
+        }
+        return results;
+    }
+
+    /**
+     * Runs a single pass looking for every code.
+     *
+     * @return the results or null if nothing was found
+     */
+    public Result[] decodeMultiple(LuminanceSource source, Pass pass) {
+        if (isCancelled()) {
+            return null;
+        }
+        BinaryBitmap bitmap = new BinaryBitmap(binarizer(source, pass));
+        if (!binarize(bitmap) || isCancelled()) {
+            return null;
+        }
+        if (options.isQrCodeOnly()) {
+            return decodeMultiple(qrCodeMultiReader, bitmap);
+        }
+        Result[] results = decodeMultiple(multipleBarcodeReader, bitmap);
+        if (!options.getFormats().contains(BarcodeFormat.QR_CODE)) {
+            return results;
+        }
+        // The generic reader crops around each hit and its single QR detector gets confused by
+        // several codes side by side, only the multi QR detector finds all of them
+        return merge(decodeMultiple(qrCodeMultiReader, bitmap), results);
+    }
+
+    private Result[] decodeMultiple(MultipleBarcodeReader reader, BinaryBitmap bitmap) {
+        long start = startTimer();
+        try {
+            Result[] results = reader.decodeMultiple(bitmap, hints);
+            return results.length == 0 ? null : results;
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            multiFormatReader.reset();
+            stopTimer(DecodeMetrics.Stage.DECODE, start);
+        }
+    }
+
+    private static Result[] merge(Result[] first, Result[] second) {
+        if (first == null || second == null) {
+            return first == null ? second : first;
+        }
+        List<Result> merged = new ArrayList<>(Arrays.asList(first));
+        for (Result result : second) {
+            boolean duplicate = false;
+            for (Result existing : first) {
+                if (existing.getBarcodeFormat() == result.getBarcodeFormat()
+                        && existing.getText().equals(result.getText())) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                merged.add(result);
+            }
+        }
+        return merged.toArray(new Result[merged.size()]);
+    }
+
+    private Binarizer binarizer(LuminanceSource source, Pass pass) {
+        switch (pass) {
+            case GLOBAL_HISTOGRAM:
+                return new GlobalHistogramBinarizer(source);
+            case INVERTED:
+                return new ReusableHybridBinarizer(source.invert(), scratch);
+            default:
+                return new ReusableHybridBinarizer(source, scratch);
+        }
+    }
+
+    /**
+     * Computes the bit matrix up front when a 2D reader will need it, so that it is timed on its
+     * own, and a cancelled decode stops before reading it. The matrix is cached by the bitmap.
+     *
+     * @return false when the image has nothing to decode
+     */
+    private boolean binarize(BinaryBitmap bitmap) {
+        if (metrics == null && cancelled == null || options.isOneDimensionalOnly()) {
+            return true;
+        }
+        long start = startTimer();
+        try {
+            bitmap.getBlackMatrix();
+            return true;
+        } catch (NotFoundException e) {
+            // 1D readers binarize row by row and may still succeed
+            return options.hasOneDimensionalFormats();
+        } finally {
+            stopTimer(DecodeMetrics.Stage.BINARIZE, start);
+        }
+    }
+
+    private Result decode(BinaryBitmap bitmap) {
+        if (options.isQrCodeOnly()) {
+            if (hints.containsKey(DecodeHintType.PURE_BARCODE)) {
+                try {
+                    return qrCodeReader.decode(bitmap, hints);
+                } catch (ReaderException e) {
+                    return null;
+                }
+            }
+            return decodeQrCode(bitmap);
+        }
+        long start = startTimer();
+        try {
+            return multiFormatReader.decodeWithState(bitmap);
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            multiFormatReader.reset();
+            stopTimer(DecodeMetrics.Stage.DECODE, start);
+        }
+    }
+
+    /**
+     * Same as {@link QRCodeReader#decode(BinaryBitmap, Map)}, with detection and decoding timed
+     * apart.
+     */
+    private Result decodeQrCode(BinaryBitmap bitmap) {
+        DetectorResult detectorResult;
+        long start = startTimer();
+        try {
+            detectorResult = new Detector(bitmap.getBlackMatrix()).detect(hints);
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            stopTimer(DecodeMetrics.Stage.DETECT, start);
+        }
+
+        DecoderResult decoderResult;
+        start = startTimer();
+        try {
+            decoderResult = qrCodeDecoder.decode(detectorResult.getBits(), hints);
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            stopTimer(DecodeMetrics.Stage.DECODE, start);
+        }
+
+        ResultPoint[] points = detectorResult.getPoints();
+        // If the code was mirrored: swap the bottom-left and the top-right points.
+        if (decoderResult.getOther() instanceof QRCodeDecoderMetaData) {
+            ((QRCodeDecoderMetaData) decoderResult.getOther()).applyMirroredCorrection(points);
+        }
+        Result result = new Result(decoderResult.getText(), decoderResult.getRawBytes(), points,
+                BarcodeFormat.QR_CODE);
+        List<byte[]> byteSegments = decoderResult.getByteSegments();
+        if (byteSegments != null) {
+            result.putMetadata(ResultMetadataType.BYTE_SEGMENTS, byteSegments);
+        }
+        String ecLevel = decoderResult.getECLevel();
+        if (ecLevel != null) {
+            result.putMetadata(ResultMetadataType.ERROR_CORRECTION_LEVEL, ecLevel);
+        }
+        if (decoderResult.hasStructuredAppend()) {
+            result.putMetadata(ResultMetadataType.STRUCTURED_APPEND_SEQUENCE,
+                    decoderResult.getStructuredAppendSequenceNumber());
+            result.putMetadata(ResultMetadataType.STRUCTURED_APPEND_PARITY,
+                    decoderResult.getStructuredAppendParity());
+        }
+        return result;
+    }
+
+    private boolean isCancelled() {
+        return cancelled != null && cancelled.get();
+    }
+
+    private long startTimer() {
+        return metrics != null ? System.nanoTime() : 0;
+    }
+
+    private void stopTimer(DecodeMetrics.Stage stage, long start) {
+        if (metrics != null) {
+            metrics.record(stage, System.nanoTime() - start);
+        }
+    }
+}
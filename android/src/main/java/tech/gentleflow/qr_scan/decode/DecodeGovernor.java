@@ -0,0 +1,166 @@
+package tech.gentleflow.qr_scan.decode;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks how often preview frames are decoded from the measured decode latency and what the
+ * recent frames contained.
+ * <p>
+ * Decoding runs at a duty cycle of the decode thread: at 1 a new decode starts as soon as the
+ * previous one is done, at 0.25 the thread rests three times as long as a decode takes. The
+ * duty cycle is full while codes or code-like structures (finder patterns) are seen, and drops in
+ * steps once the scene has been empty for a while. A constrained device, low on battery or
+ * memory, never runs at more than half of it. Frames arriving while the thread rests are skipped
+ * before they reach the decoder.
+ * <p>
+ * Times are {@link System#nanoTime()} values. Thread safe.
+ */
+public final class DecodeGovernor {
+
+    public enum Outcome {
+        /**
+         * Nothing that looks like a code.
+         */
+        NOTHING,
+        /**
+         * Something was detected, e.g. finder patterns, but not decoded.
+         */
+        CANDIDATE,
+        /**
+         * Skipped as too blurred to decode, e.g. while the phone moves or the lens refocuses.
+         */
+        BLURRED,
+        DECODED
+    }
+
+    private static final double ALPHA = 0.2;
+    private static final long IDLE_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(1500);
+    private static final long DEEP_IDLE_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(5000);
+    private static final double ACTIVE_DUTY = 1;
+    private static final double IDLE_DUTY = 0.5;
+    private static final double DEEP_IDLE_DUTY = 0.2;
+    private static final double CONSTRAINED_FACTOR = 0.5;
+
+    private boolean enabled = true;
+    private boolean constrained;
+    private double latencyNanos;
+    private double successRate;
+    private long lastActivityAt;
+    private long nextDecodeAt;
+    private boolean started;
+
+    private long offeredCount;
+    private long skippedCount;
+
+    /**
+     * @param enabled false decodes every frame the decode thread can take
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        nextDecodeAt = 0;
+    }
+
+    /**
+     * @param constrained true on battery saver, low battery or a low memory device
+     */
+    public synchronized void setConstrained(boolean constrained) {
+        this.constrained = constrained;
+    }
+
+    /**
+     * Forgets the scene so decoding starts at full rate, e.g. when scanning restarts.
+     */
+    public synchronized void reset(long now) {
+        lastActivityAt = now;
+        nextDecodeAt = 0;
+        started = true;
+    }
+
+    /**
+     * Called for every preview frame.
+     *
+     * @return false when the frame should be skipped
+     */
+    public synchronized boolean shouldDecode(long now) {
+        offeredCount++;
+        if (!started) {
+            reset(now);
+        }
+        if (enabled && now - nextDecodeAt < 0) {
+            skippedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called once a frame was decoded, or skipped as blurred. A blurred frame keeps the rate up,
+     * the scene is changing, but neither its latency nor its outcome is averaged, it was not
+     * decoded.
+     *
+     * @param latencyNanos how long the decode took
+     */
+    public synchronized void onDecoded(long latencyNanos, Outcome outcome, long now) {
+        if (outcome != Outcome.BLURRED) {
+            this.latencyNanos = this.latencyNanos == 0 ? latencyNanos
+                    : this.latencyNanos + ALPHA * (latencyNanos - this.latencyNanos);
+            successRate += ALPHA * ((outcome == Outcome.DECODED ? 1 : 0) - successRate);
+        }
+        if (outcome != Outcome.NOTHING) {
+            lastActivityAt = now;
+        }
+        double duty = getDutyCycle(now);
+        nextDecodeAt = now + (long) (this.latencyNanos * (1 / duty - 1));
+    }
+
+    private double getDutyCycle(long now) {
+        long idle = now - lastActivityAt;
+        double duty = idle >= DEEP_IDLE_AFTER_NANOS ? DEEP_IDLE_DUTY
+                : idle >= IDLE_AFTER_NANOS ? IDLE_DUTY : ACTIVE_DUTY;
+        return constrained ? duty * CONSTRAINED_FACTOR : duty;
+    }
+
+    /**
+     * @return the share of time the decode thread is meant to be busy, between 0 and 1
+     */
+    public synchronized double getDutyCycle() {
+        return enabled ? getDutyCycle(System.nanoTime()) : 1;
+    }
+
+    /**
+     * @return decodes per second aimed at, 0 before the first decode
+     */
+    public synchronized double getTargetRate() {
+        if (latencyNanos == 0) {
+            return 0;
+        }
+        return TimeUnit.SECONDS.toNanos(1) / latencyNanos * getDutyCycle();
+    }
+
+    public synchronized double getLatencyMillis() {
+        return latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return moving average of the decodes that found a code, between 0 and 1
+     */
+    public synchronized double getSuccessRate() {
+        return successRate;
+    }
+
+    /**
+     * @return the share of frames skipped to keep to the target rate
+     */
+    public synchronized double getSkipRatio() {
+        return offeredCount == 0 ? 0 : (double) skippedCount / offeredCount;
+    }
+
+    public synchronized boolean isConstrained() {
+        return constrained;
+    }
+
+    public synchronized void resetCounters() {
+        offeredCount = 0;
+        skippedCount = 0;
+    }
+}
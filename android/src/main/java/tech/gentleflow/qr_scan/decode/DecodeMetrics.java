@@ -0,0 +1,264 @@
+package tech.gentleflow.qr_scan.decode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and latency histograms of the scan pipeline, from the preview frame to the result
+ * reaching the platform channel.
+ * <p>
+ * Latencies go into log2 buckets of microseconds: bucket 0 holds everything under 1 us, bucket
+ * i the range [2^(i-1), 2^i) us and the last bucket everything above. Percentiles are reported
+ * as the upper bound of their bucket, at most the maximum. Recording takes no allocation, thread safe.
+ */
+public final class DecodeMetrics {
+
+    public enum Counter {
+        /**
+         * Preview frames handed over by the camera.
+         */
+        FRAMES_RECEIVED("received"),
+        /**
+         * Frames dropped while decoding was disabled or not running.
+         */
+        FRAMES_DISABLED("disabled"),
+        /**
+         * Frames skipped by the {@link DecodeGovernor}.
+         */
+        FRAMES_SKIPPED("skipped"),
+        /**
+         * Frames replaced in the decode mailbox by a newer one before being decoded.
+         */
+        FRAMES_REPLACED("replaced"),
+        /**
+         * Frames the {@link SharpnessGate} found too blurred to decode.
+         */
+        FRAMES_BLURRED("blurred"),
+        FRAMES_DECODED("decoded"),
+        /**
+         * Frames searched at the coarse level of the pyramid.
+         */
+        PYRAMID_COARSE("coarse"),
+        /**
+         * Frames searched only in the window around the last code.
+         */
+        FRAMES_TRACKED("tracked"),
+        /**
+         * Coarse frames with finder patterns but no decode, searched again at full resolution.
+         */
+        PYRAMID_ESCALATED("escalated"),
+        /**
+         * Focus cycles asked for because codes were seen but not decoded.
+         */
+        FOCUS_REQUESTED("focus"),
+        /**
+         * Times the camera was asked to focus and meter on another part of the frame.
+         */
+        FOCUS_AREA_CHANGED("area"),
+        /**
+         * Changes of the light level picked by the {@link LowLightController}.
+         */
+        LIGHT_CHANGED("light"),
+        CODES_FOUND("found"),
+        /**
+         * Codes dropped by the {@link DuplicateFilter}.
+         */
+        CODES_SUPPRESSED("suppressed");
+
+        final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    public enum Stage {
+        /**
+         * Measuring the sharpness of a frame for the {@link SharpnessGate}.
+         */
+        SHARPNESS("sharpness"),
+        /**
+         * Building the luminance source of a frame.
+         */
+        LUMINANCE("luminance"),
+        /**
+         * Turning luminance into a bit matrix, once per pass.
+         */
+        BINARIZE("binarize"),
+        /**
+         * Locating a code in the bit matrix. Only measured apart from {@link #DECODE} when QR
+         * codes alone are looked for, the other readers detect and decode in one go.
+         */
+        DETECT("detect"),
+        DECODE("decode"),
+        /**
+         * Passes after the first one, e.g. the inverted image. Overlaps the stages above.
+         */
+        FALLBACK("fallback"),
+        /**
+         * Mapping result points to view coordinates.
+         */
+        TRANSFORM("transform"),
+        /**
+         * Handing results to the listener, i.e. the platform channel.
+         */
+        DISPATCH("dispatch");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    static final int BUCKET_COUNT = 24;
+
+    private final long[] counters = new long[Counter.values().length];
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+    public DecodeMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public void add(Counter counter, long delta) {
+        synchronized (counters) {
+            counters[counter.ordinal()] += delta;
+        }
+    }
+
+    public long get(Counter counter) {
+        synchronized (counters) {
+            return counters[counter.ordinal()];
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    public void reset() {
+        synchronized (counters) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = 0;
+            }
+        }
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @return {"frames": {counter: count}, "stages": {stage: {"count", "totalUs", "maxUs",
+     * "p50Us", "p90Us", "p99Us", "buckets"}}}, with plain maps, lists and numbers only
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> frames = new HashMap<>();
+        synchronized (counters) {
+            for (Counter counter : Counter.values()) {
+                frames.put(counter.key, counters[counter.ordinal()]);
+            }
+        }
+        Map<String, Object> stages = new HashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.key, histograms[stage.ordinal()].snapshot());
+        }
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("frames", frames);
+        snapshot.put("stages", stages);
+        return snapshot;
+    }
+
+    /**
+     * @return a one line summary for the log
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (counters) {
+            for (Counter counter : Counter.values()) {
+                builder.append(counter.key).append('=').append(counters[counter.ordinal()])
+                        .append(' ');
+            }
+        }
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = histograms[stage.ordinal()];
+            synchronized (histogram) {
+                if (histogram.count > 0) {
+                    builder.append(stage.key).append("(n=").append(histogram.count)
+                            .append(" p50=").append(histogram.percentileMicros(0.5))
+                            .append("us p99=").append(histogram.percentileMicros(0.99))
+                            .append("us) ");
+                }
+            }
+        }
+        return builder.toString().trim();
+    }
+
+    private static final class Histogram {
+        private final long[] buckets = new long[BUCKET_COUNT];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            buckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = 0;
+            }
+            count = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+        }
+
+        long percentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long maxMicros = TimeUnit.NANOSECONDS.toMicros(maxNanos);
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length - 1; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        synchronized Map<String, Object> snapshot() {
+            List<Long> bucketList = new ArrayList<>(buckets.length);
+            for (long bucket : buckets) {
+                bucketList.add(bucket);
+            }
+            Map<String, Object> snapshot = new HashMap<>();
+            snapshot.put("count", count);
+            snapshot.put("totalUs", TimeUnit.NANOSECONDS.toMicros(totalNanos));
+            snapshot.put("maxUs", TimeUnit.NANOSECONDS.toMicros(maxNanos));
+            snapshot.put("p50Us", percentileMicros(0.5));
+            snapshot.put("p90Us", percentileMicros(0.9));
+            snapshot.put("p99Us", percentileMicros(0.99));
+            snapshot.put("buckets", bucketList);
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.DecodeHintType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which barcode formats to look for and how hard to try. Drives the readers and the fallback
+ * passes of both the live preview and the image decoding.
+ */
+public final class DecodeOptions {
+
+    public enum Effort {
+        /**
+         * A single pass over the image.
+         */
+        FAST,
+        /**
+         * Retries an inverted image, for light codes on a dark background.
+         */
+        NORMAL,
+        /**
+         * Enables {@link DecodeHintType#TRY_HARDER} and also retries with a global histogram
+         * binarizer.
+         */
+        THOROUGH
+    }
+
+    private static final Set<BarcodeFormat> ONE_DIMENSIONAL_FORMATS = EnumSet.of(
+            BarcodeFormat.CODABAR, BarcodeFormat.CODE_39, BarcodeFormat.CODE_93,
+            BarcodeFormat.CODE_128, BarcodeFormat.EAN_8, BarcodeFormat.EAN_13, BarcodeFormat.ITF,
+            BarcodeFormat.RSS_14, BarcodeFormat.RSS_EXPANDED, BarcodeFormat.UPC_A,
+            BarcodeFormat.UPC_E, BarcodeFormat.UPC_EAN_EXTENSION);
+
+    /**
+     * Default of the live preview: every format, {@link Effort#NORMAL}. Unlike the earlier
+     * preview, which retried each missed frame with {@link DecodeHintType#TRY_HARDER} over all
+     * formats, no frame is tried harder by default, a missed frame is cheap to replace with the
+     * next one. Use {@link Effort#THOROUGH} to get that effort back.
+     */
+    public static final DecodeOptions DEFAULT =
+            new DecodeOptions(EnumSet.allOf(BarcodeFormat.class), Effort.NORMAL);
+
+    private final Set<BarcodeFormat> formats;
+    private final Effort effort;
+    private final boolean multiple;
+    private final Map<DecodeHintType, Object> hints;
+
+    public DecodeOptions(Collection<BarcodeFormat> formats, Effort effort) {
+        this(formats, effort, false);
+    }
+
+    /**
+     * @param multiple look for every code of an image instead of stopping at the first one
+     */
+    public DecodeOptions(Collection<BarcodeFormat> formats, Effort effort, boolean multiple) {
+        this.multiple = multiple;
+        this.formats = Collections.unmodifiableSet(formats.isEmpty()
+                ? EnumSet.allOf(BarcodeFormat.class) : EnumSet.copyOf(formats));
+        this.effort = effort;
+
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, new ArrayList<>(this.formats));
+        hints.put(DecodeHintType.CHARACTER_SET, "utf-8");
+        if (effort == Effort.THOROUGH) {
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        }
+        this.hints = Collections.unmodifiableMap(hints);
+    }
+
+    /**
+     * Builds options from platform channel arguments.
+     *
+     * @param formats       list of {@link BarcodeFormat} names, null or empty for all formats.
+     *                      Unknown names are ignored.
+     * @param effort        {@link Effort} name, or null
+     * @param defaultEffort effort used when none is given
+     */
+    public static DecodeOptions fromParams(Object formats, Object effort, Effort defaultEffort) {
+        List<BarcodeFormat> formatList = new ArrayList<>();
+        if (formats instanceof List) {
+            for (Object name : (List<?>) formats) {
+                try {
+                    formatList.add(BarcodeFormat.valueOf(String.valueOf(name)));
+                } catch (IllegalArgumentException e) {
+                    // Not known by this version of ZXing
+                }
+            }
+        }
+        Effort effortValue = defaultEffort;
+        if (effort != null) {
+            try {
+                effortValue = Effort.valueOf(String.valueOf(effort));
+            } catch (IllegalArgumentException e) {
+                // Keep the default
+            }
+        }
+        return new DecodeOptions(formatList, effortValue);
+    }
+
+    public Set<BarcodeFormat> getFormats() {
+        return formats;
+    }
+
+    public Effort getEffort() {
+        return effort;
+    }
+
+    public boolean isMultiple() {
+        return multiple;
+    }
+
+    /**
+     * @return a copy of these options that looks for every code, or only the first one
+     */
+    public DecodeOptions withMultiple(boolean multiple) {
+        return multiple == this.multiple ? this : new DecodeOptions(formats, effort, multiple);
+    }
+
+    /**
+     * @return hints for {@link com.google.zxing.Reader#decode}, not to be modified
+     */
+    public Map<DecodeHintType, Object> getHints() {
+        return hints;
+    }
+
+    /**
+     * @return true when only QR codes are looked for, the other readers never need to run.
+     */
+    public boolean isQrCodeOnly() {
+        return formats.size() == 1 && formats.contains(BarcodeFormat.QR_CODE);
+    }
+
+    /**
+     * @return true when a 1D format is looked for, those only decode along rows of the image.
+     */
+    public boolean hasOneDimensionalFormats() {
+        for (BarcodeFormat format : formats) {
+            if (ONE_DIMENSIONAL_FORMATS.contains(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true when only 1D formats are looked for, no bit matrix is ever needed.
+     */
+    public boolean isOneDimensionalOnly() {
+        return ONE_DIMENSIONAL_FORMATS.containsAll(formats);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DecodeOptions)) {
+            return false;
+        }
+        DecodeOptions other = (DecodeOptions) o;
+        return effort == other.effort && multiple == other.multiple
+                && formats.equals(other.formats);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * formats.hashCode() + effort.hashCode()) + (multiple ? 1 : 0);
+    }
+}
@@ -0,0 +1,133 @@
+package tech.gentleflow.qr_scan.decode;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+import tech.gentleflow.qr_scan.frame.FrameSource;
+
+/**
+ * Long-lived worker that decodes frames one at a time.
+ * <p>
+ * Frames are posted to a single-slot mailbox: a frame still waiting when a newer one arrives is
+ * released without being decoded, so the worker always picks up the latest frame and the
+ * latency of a result is bounded by a single decode. Every frame waits with the source it came
+ * from and is released to that source, even when several sources feed the same worker. No
+ * objects are created per frame.
+ */
+public final class DecodeThread extends Thread {
+
+    public interface FrameHandler {
+
+        /**
+         * Called on the decode thread for every frame taken from the mailbox.
+         */
+        void onDecodeFrame(Frame frame);
+
+        /**
+         * Called exactly once for every offered frame, after it was decoded or when it was
+         * replaced by a newer frame, possibly on the offering thread.
+         *
+         * @param source the source the frame was offered with
+         */
+        void onReleaseFrame(Frame frame, FrameSource source);
+    }
+
+    private final FrameHandler handler;
+    private Frame pending;
+    private FrameSource pendingSource;
+    private boolean quit;
+    private long replacedCount;
+
+    public DecodeThread(FrameHandler handler) {
+        super("QrDecodeThread");
+        this.handler = handler;
+    }
+
+    /**
+     * Posts a frame to the mailbox, replacing any frame still waiting there.
+     *
+     * @param frame  the frame, handed back through
+     *               {@link FrameHandler#onReleaseFrame(Frame, FrameSource)}
+     * @param source the source the frame belongs to, handed back with it
+     * @return true when a waiting frame was replaced
+     */
+    public boolean offer(Frame frame, FrameSource source) {
+        Frame released;
+        FrameSource releasedSource;
+        synchronized (this) {
+            if (quit) {
+                released = frame;
+                releasedSource = source;
+            } else {
+                released = pending;
+                releasedSource = pendingSource;
+                pending = frame;
+                pendingSource = source;
+                if (released != null) {
+                    replacedCount++;
+                }
+                notify();
+            }
+        }
+        if (released != null) {
+            handler.onReleaseFrame(released, releasedSource);
+        }
+        return released != null && released != frame;
+    }
+
+    /**
+     * @return how many frames were replaced in the mailbox before the worker got to them.
+     */
+    public synchronized long getReplacedCount() {
+        return replacedCount;
+    }
+
+    /**
+     * Stops the worker once the frame being decoded, if any, is done. A waiting frame is
+     * released right away.
+     */
+    public void quit() {
+        Frame released;
+        FrameSource releasedSource;
+        synchronized (this) {
+            quit = true;
+            released = pending;
+            releasedSource = pendingSource;
+            pending = null;
+            pendingSource = null;
+            notify();
+        }
+        if (released != null) {
+            handler.onReleaseFrame(released, releasedSource);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Frame frame;
+            FrameSource source;
+            synchronized (this) {
+                while (pending == null && !quit) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        quit = true;
+                    }
+                }
+                if (quit) {
+                    break;
+                }
+                frame = pending;
+                source = pendingSource;
+                pending = null;
+                pendingSource = null;
+            }
+            try {
+                handler.onDecodeFrame(frame);
+            } finally {
+                handler.onReleaseFrame(frame, source);
+            }
+        }
+        // A frame may have been offered between the interrupt and the loop exit
+        quit();
+    }
+}
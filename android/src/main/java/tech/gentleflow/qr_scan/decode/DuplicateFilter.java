@@ -0,0 +1,136 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops results that were already delivered a short while ago, so a code held in front of the
+ * camera is reported once instead of on every frame.
+ * <p>
+ * Recently delivered payloads are kept in a bounded LRU keyed by format and text. A payload is
+ * suppressed while its entry is younger than the time to live, after that it is delivered again
+ * and the entry restarts. Suppressed repeats are only counted.
+ */
+public final class DuplicateFilter {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final long ttlMillis;
+    private final LinkedHashMap<Key, Long> delivered;
+    private long suppressedCount;
+
+    /**
+     * @param capacity  how many distinct payloads are remembered, the least recently seen one is
+     *                  forgotten first
+     * @param ttlMillis how long a delivered payload is suppressed
+     */
+    public DuplicateFilter(final int capacity, long ttlMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        }
+        this.ttlMillis = ttlMillis;
+        this.delivered = new LinkedHashMap<Key, Long>(capacity + 1, 1f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @param nowMillis a monotonic clock in milliseconds
+     * @return true when the result should be delivered, false for a suppressed repeat
+     */
+    public synchronized boolean accept(Result result, long nowMillis) {
+        Key key = new Key(result.getBarcodeFormat(), result.getText());
+        Long deliveredAt = delivered.get(key);
+        if (deliveredAt != null && nowMillis - deliveredAt < ttlMillis) {
+            suppressedCount++;
+            return false;
+        }
+        delivered.put(key, nowMillis);
+        return true;
+    }
+
+    /**
+     * Keeps the results to deliver.
+     *
+     * @return the accepted results, the given array when all of them are, or null when none is
+     */
+    public Result[] filter(Result[] results, long nowMillis) {
+        int accepted = 0;
+        boolean[] keep = new boolean[results.length];
+        for (int i = 0; i < results.length; i++) {
+            keep[i] = accept(results[i], nowMillis);
+            if (keep[i]) {
+                accepted++;
+            }
+        }
+        if (accepted == results.length) {
+            return results;
+        }
+        if (accepted == 0) {
+            return null;
+        }
+        Result[] filtered = new Result[accepted];
+        for (int i = 0, j = 0; i < results.length; i++) {
+            if (keep[i]) {
+                filtered[j++] = results[i];
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Forgets every payload, the next sighting of each code is delivered.
+     */
+    public synchronized void clear() {
+        delivered.clear();
+    }
+
+    /**
+     * @return how many repeats were dropped.
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public synchronized int size() {
+        return delivered.size();
+    }
+
+    public synchronized void resetCounters() {
+        suppressedCount = 0;
+    }
+
+    private static final class Key {
+        private final BarcodeFormat format;
+        private final String text;
+
+        Key(BarcodeFormat format, String text) {
+            this.format = format;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return format == other.format && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * format.hashCode() + text.hashCode();
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+import tech.gentleflow.qr_scan.frame.FrameSource;
+
+/**
+ * The live decoding path, from a preview frame to the codes found in it, free of Android so it
+ * can be driven by a recording as well as by the camera.
+ * <p>
+ * Frames go through the {@link DecodeGovernor}, then the mailbox of a {@link DecodeThread},
+ * which decodes the crop of the frame, or only the region of the last code when tracking,
+ * optionally coarse to fine, with a {@link DecodeContext} and drops repeats with the
+ * {@link DuplicateFilter}. Frames that keep showing finder patterns without a code ask the
+ * {@link FocusListener} for focus, which is also told where to focus and meter: on the tracking
+ * window, else the crop. The {@link LowLightController} measures the light of the frames before
+ * they are decoded, and the {@link SharpnessGate} drops the blurred ones, which still ask for
+ * focus like a missed code. Everything is counted and timed in {@link DecodeMetrics}.
+ */
+public final class FramePipeline implements FrameSource.FrameCallback {
+
+    public interface Listener {
+
+        /**
+         * Called on the decode thread with the codes of a frame, result points in frame
+         * coordinates.
+         */
+        void onResults(Result[] results);
+    }
+
+    public interface FocusListener {
+
+        /**
+         * Called on the decode thread when frames keep showing finder patterns that do not
+         * decode, most likely a code out of focus.
+         */
+        void onFocusNeeded();
+
+        /**
+         * Called on the decode thread when the part of the frame codes are looked for in moved
+         * enough to focus and meter on it instead, at most every 300 ms.
+         *
+         * @param area the tracking window or the crop, in frame coordinates, null for the whole
+         *             frame
+         */
+        void onFocusAreaChanged(Crop area);
+    }
+
+    /**
+     * Part of the frame that is decoded.
+     */
+    public static final class Crop {
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+
+        public Crop(int left, int top, int width, int height) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getLeft() {
+            return left;
+        }
+
+        public int getTop() {
+            return top;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * Possible result points of a failed decode that count as a code coming into view,
+     * e.g. three QR finder patterns
+     */
+    private static final int CANDIDATE_POINT_COUNT = 3;
+    /**
+     * Smallest side of the coarse level of the pyramid, below it codes get too few pixels
+     */
+    private static final int MIN_COARSE_SIZE = 240;
+    /**
+     * Empty coarse frames after which a frame is searched at full resolution, for codes too
+     * small to show at the coarse level
+     */
+    private static final int COARSE_MISSES_BEFORE_FULL = 4;
+    /**
+     * Margin added on every side of the last code when tracking, as a share of its size
+     */
+    private static final float TRACK_PADDING = 1f;
+    /**
+     * Smallest side of the tracking window
+     */
+    private static final int MIN_TRACK_SIZE = 96;
+    /**
+     * Decodes in a row with finder patterns but no code after which focus is asked for
+     */
+    private static final int CANDIDATE_MISSES_BEFORE_FOCUS = 3;
+    /**
+     * Least time between two focus requests, a focus cycle takes about as long
+     */
+    private static final long FOCUS_COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+    /**
+     * Least time between two focus area changes, each one costs the camera a parameter update
+     */
+    private static final long FOCUS_AREA_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    private final DecodeGovernor governor = new DecodeGovernor();
+    private final DecodeMetrics metrics = new DecodeMetrics();
+    private final LowLightController lightController = new LowLightController();
+    private final SharpnessGate sharpnessGate = new SharpnessGate();
+    private volatile Listener listener;
+    private volatile FocusListener focusListener;
+    private volatile boolean enabled = true;
+    private volatile DecodeOptions options = DecodeOptions.DEFAULT;
+    private volatile Map<DecodeHintType, Object> hints;
+    private volatile Crop crop;
+    private volatile DuplicateFilter duplicateFilter;
+    private volatile boolean pyramid;
+    private volatile boolean tracking;
+    private DecodeThread decodeThread;
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param focusListener asked for focus when a code seems blurred, null for none
+     */
+    public void setFocusListener(FocusListener focusListener) {
+        this.focusListener = focusListener;
+    }
+
+    /**
+     * @param enabled false releases every frame without decoding it
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setDecodeOptions(DecodeOptions options) {
+        this.options = options;
+        this.hints = options.getHints();
+    }
+
+    /**
+     * @param hints hints to use instead of the ones of the decode options
+     */
+    public void setDecodeHints(Map<DecodeHintType, Object> hints) {
+        this.hints = hints;
+    }
+
+    /**
+     * @param crop part of the frame to decode, null for the whole frame
+     */
+    public void setCrop(Crop crop) {
+        this.crop = crop;
+    }
+
+    /**
+     * @param duplicateFilter drops repeated codes, null to report every decoded code
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /**
+     * Search frames at half or quarter resolution first, a subsampled view of the frame that
+     * costs no copy. A frame is searched at full resolution when the coarse level shows finder
+     * patterns but does not decode, and every few frames when it shows nothing.
+     *
+     * @param pyramid true to enable, false by default
+     */
+    public void setPyramid(boolean pyramid) {
+        this.pyramid = pyramid;
+    }
+
+    /**
+     * Once a code is decoded, search the next frames only around it, with a margin for the
+     * code moving. Every frame the code is missed the window doubles, until it is back to the
+     * whole crop. Ignored when every code of a frame is decoded.
+     *
+     * @param tracking true to enable, false by default
+     */
+    public void setTracking(boolean tracking) {
+        this.tracking = tracking;
+    }
+
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    public DecodeGovernor getGovernor() {
+        return governor;
+    }
+
+    public DecodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    public LowLightController getLightController() {
+        return lightController;
+    }
+
+    public SharpnessGate getSharpnessGate() {
+        return sharpnessGate;
+    }
+
+    /**
+     * Starts the decode thread, frames received before are released without being decoded.
+     */
+    public synchronized void start() {
+        if (decodeThread == null) {
+            decodeThread = new DecodeThread(new FrameDecoder());
+            decodeThread.start();
+        }
+    }
+
+    /**
+     * Stops the decode thread once the frame being decoded, if any, is done.
+     */
+    public synchronized void stop() {
+        if (decodeThread != null) {
+            decodeThread.quit();
+            decodeThread = null;
+        }
+    }
+
+    @Override
+    public void onFrame(Frame frame, FrameSource source) {
+        metrics.increment(DecodeMetrics.Counter.FRAMES_RECEIVED);
+        DecodeThread thread;
+        synchronized (this) {
+            thread = decodeThread;
+        }
+        if (!enabled || thread == null) {
+            metrics.increment(DecodeMetrics.Counter.FRAMES_DISABLED);
+            source.releaseFrame(frame);
+            return;
+        }
+
+        if (!governor.shouldDecode(System.nanoTime())) {
+            metrics.increment(DecodeMetrics.Counter.FRAMES_SKIPPED);
+            source.releaseFrame(frame);
+            return;
+        }
+
+        if (thread.offer(frame, source)) {
+            metrics.increment(DecodeMetrics.Counter.FRAMES_REPLACED);
+        }
+    }
+
+    /**
+     * Decodes the frames taken from the mailbox of the decode thread, on that thread.
+     */
+    private final class FrameDecoder implements DecodeThread.FrameHandler {
+
+        private final DecodeContext decodeContext = new DecodeContext(DecodeOptions.DEFAULT);
+        private int coarseMisses;
+        /**
+         * Window around the last code, null when not tracking
+         */
+        private Crop window;
+        /**
+         * Crop the window was found in, the window is dropped when the crop changes
+         */
+        private Crop windowCrop;
+        private int candidateMisses;
+        private boolean focusRequested;
+        private long lastFocusAt;
+        /**
+         * Focus area given to the {@link FocusListener} last, null for the whole frame
+         */
+        private Crop focusArea;
+        private boolean focusAreaChanged;
+        private long lastFocusAreaAt;
+
+        FrameDecoder() {
+            decodeContext.setMetrics(metrics);
+        }
+
+        @Override
+        public void onDecodeFrame(Frame frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            if (width == 0 || height == 0) {
+                return;
+            }
+            if (lightController.onFrame(frame, System.nanoTime())) {
+                metrics.increment(DecodeMetrics.Counter.LIGHT_CHANGED);
+            }
+
+            Crop currentCrop = crop;
+            Crop frameCrop = currentCrop;
+            if (frameCrop == null || frameCrop.left + frameCrop.width > width
+                    || frameCrop.top + frameCrop.height > height) {
+                // No crop, or one set for another frame size
+                frameCrop = new Crop(0, 0, width, height);
+            }
+            // A window around one code would hide the others when all codes are asked for
+            boolean track = tracking && !options.isMultiple();
+            if (!track || windowCrop != currentCrop) {
+                window = null;
+            }
+            Crop searched = window != null ? window : frameCrop;
+            int left = searched.left;
+            int top = searched.top;
+            int cropWidth = searched.width;
+            int cropHeight = searched.height;
+
+            long start = System.nanoTime();
+            int sharpness = 0;
+            if (sharpnessGate.isEnabled()) {
+                sharpness = SharpnessGate.measure(frame, left, top, cropWidth, cropHeight);
+                long measured = System.nanoTime();
+                metrics.record(DecodeMetrics.Stage.SHARPNESS, measured - start);
+                if (!sharpnessGate.accept(sharpness)) {
+                    metrics.increment(DecodeMetrics.Counter.FRAMES_BLURRED);
+                    // Blurred frames are the ones a refocus is for, they count as misses
+                    governor.onDecoded(measured - start, DecodeGovernor.Outcome.BLURRED,
+                            measured);
+                    requestFocusIfBlurred(true, measured);
+                    return;
+                }
+                start = measured;
+            }
+            Result[] results = null;
+            boolean candidate = false;
+            int scale = 1;
+            int factor = pyramidFactor(cropWidth, cropHeight);
+            boolean full = true;
+            if (factor > 1 && coarseMisses < COARSE_MISSES_BEFORE_FULL) {
+                LuminanceSource coarse =
+                        luminanceSource(frame, left, top, cropWidth, cropHeight, factor);
+                metrics.record(DecodeMetrics.Stage.LUMINANCE, System.nanoTime() - start);
+                metrics.increment(DecodeMetrics.Counter.PYRAMID_COARSE);
+                results = decode(coarse);
+                candidate = decodeContext.getPossiblePointCount() >= CANDIDATE_POINT_COUNT;
+                if (results != null) {
+                    scale = factor;
+                    coarseMisses = 0;
+                    full = false;
+                } else if (candidate) {
+                    // Finder patterns but no decode, the code needs more pixels
+                    metrics.increment(DecodeMetrics.Counter.PYRAMID_ESCALATED);
+                } else {
+                    coarseMisses++;
+                    full = false;
+                }
+            } else {
+                coarseMisses = 0;
+            }
+            if (full) {
+                long fullStart = System.nanoTime();
+                LuminanceSource luminanceSource =
+                        luminanceSource(frame, left, top, cropWidth, cropHeight, 1);
+                metrics.record(DecodeMetrics.Stage.LUMINANCE, System.nanoTime() - fullStart);
+                results = decode(luminanceSource);
+                candidate |= decodeContext.getPossiblePointCount() >= CANDIDATE_POINT_COUNT;
+            }
+            long end = System.nanoTime();
+            metrics.increment(DecodeMetrics.Counter.FRAMES_DECODED);
+            governor.onDecoded(end - start, results != null ? DecodeGovernor.Outcome.DECODED
+                    : candidate ? DecodeGovernor.Outcome.CANDIDATE
+                    : DecodeGovernor.Outcome.NOTHING, end);
+            requestFocusIfBlurred(results == null && candidate, end);
+            if (window != null) {
+                metrics.increment(DecodeMetrics.Counter.FRAMES_TRACKED);
+            }
+            // A crop that does not fit the frame is not decoded, nor focused on
+            Crop scanArea = frameCrop == currentCrop ? currentCrop : null;
+            if (results == null) {
+                if (window != null) {
+                    window = widen(window, frameCrop);
+                }
+                updateFocusArea(window != null ? window : scanArea, end);
+                return;
+            }
+            results = toFrameCoordinates(results, left, top, scale);
+            if (sharpness > 0) {
+                sharpnessGate.onDecoded(sharpness);
+            }
+            if (track) {
+                window = track(results, frameCrop);
+                windowCrop = currentCrop;
+            }
+            updateFocusArea(window != null ? window : scanArea, end);
+
+            int found = results.length;
+            metrics.add(DecodeMetrics.Counter.CODES_FOUND, found);
+            DuplicateFilter filter = duplicateFilter;
+            if (filter != null) {
+                results = filter.filter(results, TimeUnit.NANOSECONDS.toMillis(end));
+                metrics.add(DecodeMetrics.Counter.CODES_SUPPRESSED,
+                        found - (results == null ? 0 : results.length));
+            }
+            Listener resultListener = listener;
+            if (results != null && resultListener != null) {
+                resultListener.onResults(results);
+            }
+        }
+
+        /**
+         * @param missed true if the frame showed finder patterns but nothing decoded, or was
+         *               skipped as blurred
+         */
+        private void requestFocusIfBlurred(boolean missed, long now) {
+            if (!missed) {
+                candidateMisses = 0;
+                return;
+            }
+            FocusListener focus = focusListener;
+            if (++candidateMisses < CANDIDATE_MISSES_BEFORE_FOCUS || focus == null
+                    || focusRequested && now - lastFocusAt < FOCUS_COOLDOWN_NANOS) {
+                return;
+            }
+            candidateMisses = 0;
+            focusRequested = true;
+            lastFocusAt = now;
+            metrics.increment(DecodeMetrics.Counter.FOCUS_REQUESTED);
+            focus.onFocusNeeded();
+        }
+
+        /**
+         * Gives the area to the {@link FocusListener} if it moved from the last one.
+         */
+        private void updateFocusArea(Crop area, long now) {
+            FocusListener focus = focusListener;
+            if (focus == null || !moved(focusArea, area)
+                    || focusAreaChanged && now - lastFocusAreaAt < FOCUS_AREA_INTERVAL_NANOS) {
+                return;
+            }
+            focusArea = area;
+            focusAreaChanged = true;
+            lastFocusAreaAt = now;
+            metrics.increment(DecodeMetrics.Counter.FOCUS_AREA_CHANGED);
+            focus.onFocusAreaChanged(area);
+        }
+
+        /**
+         * @return true if the center moved or a side changed by more than an eighth of the side
+         * of the last area, smaller moves would not change what is in focus
+         */
+        private boolean moved(Crop last, Crop area) {
+            if (last == null || area == null) {
+                return last != area;
+            }
+            return Math.abs(2 * (area.left - last.left) + area.width - last.width) * 4 > last.width
+                    || Math.abs(2 * (area.top - last.top) + area.height - last.height) * 4
+                    > last.height
+                    || Math.abs(area.width - last.width) * 8 > last.width
+                    || Math.abs(area.height - last.height) * 8 > last.height;
+        }
+
+        @Override
+        public void onReleaseFrame(Frame frame, FrameSource source) {
+            source.releaseFrame(frame);
+        }
+
+        /**
+         * @return a view of the region of the frame, with no copy
+         */
+        private LuminanceSource luminanceSource(Frame frame, int left, int top, int width,
+                                                int height, int factor) {
+            byte[] data = frame.getData();
+            if (data == null) {
+                return new PlaneLuminanceSource(frame.getPlane(), frame.getRowStride(),
+                        frame.getWidth(), frame.getHeight(), left, top, width, height, factor);
+            }
+            if (factor == 1) {
+                return new PlanarYUVLuminanceSource(data, frame.getWidth(), frame.getHeight(),
+                        left, top, width, height, false);
+            }
+            return new SubsampledLuminanceSource(data, frame.getWidth(), frame.getHeight(), left,
+                    top, width, height, factor);
+        }
+
+        /**
+         * @return the box of every result point with a margin, inside the crop, or null when
+         * the results have no points
+         */
+        private Crop track(Result[] results, Crop frameCrop) {
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (Result result : results) {
+                ResultPoint[] points = result.getResultPoints();
+                if (points == null) {
+                    continue;
+                }
+                for (ResultPoint point : points) {
+                    if (point == null) {
+                        continue;
+                    }
+                    minX = Math.min(minX, point.getX());
+                    minY = Math.min(minY, point.getY());
+                    maxX = Math.max(maxX, point.getX());
+                    maxY = Math.max(maxY, point.getY());
+                }
+            }
+            if (minX > maxX) {
+                return null;
+            }
+            // Square margin: a 1D barcode gives points on a single row
+            float size = Math.max(maxX - minX, maxY - minY);
+            int margin = (int) (size * TRACK_PADDING);
+            return clamp((int) minX - margin, (int) minY - margin, (int) maxX + margin,
+                    (int) maxY + margin, frameCrop);
+        }
+
+        /**
+         * @return the window twice as large around the same center, or null once it covers
+         * the crop
+         */
+        private Crop widen(Crop window, Crop frameCrop) {
+            return clamp(window.left - window.width / 2, window.top - window.height / 2,
+                    window.left + window.width * 3 / 2, window.top + window.height * 3 / 2,
+                    frameCrop);
+        }
+
+        /**
+         * @return the box grown to the minimum size and shifted inside the crop, or null when
+         * it is as large as the crop
+         */
+        private Crop clamp(int left, int top, int right, int bottom, Crop frameCrop) {
+            int width = Math.min(Math.max(right - left, MIN_TRACK_SIZE), frameCrop.width);
+            int height = Math.min(Math.max(bottom - top, MIN_TRACK_SIZE), frameCrop.height);
+            if (width == frameCrop.width && height == frameCrop.height) {
+                return null;
+            }
+            left = (left + right - width) / 2;
+            top = (top + bottom - height) / 2;
+            left = Math.min(Math.max(left, frameCrop.left),
+                    frameCrop.left + frameCrop.width - width);
+            top = Math.min(Math.max(top, frameCrop.top),
+                    frameCrop.top + frameCrop.height - height);
+            return new Crop(left, top, width, height);
+        }
+
+        /**
+         * @return how much the coarse level of the pyramid is subsampled, 1 for no pyramid
+         */
+        private int pyramidFactor(int cropWidth, int cropHeight) {
+            if (!pyramid) {
+                return 1;
+            }
+            int size = Math.min(cropWidth, cropHeight);
+            return size >= 4 * MIN_COARSE_SIZE ? 4 : size >= 2 * MIN_COARSE_SIZE ? 2 : 1;
+        }
+
+        private Result[] decode(LuminanceSource luminanceSource) {
+            final DecodeOptions decodeOptions = options;
+            final Map<DecodeHintType, Object> decodeHints = hints;
+            decodeContext.setOptions(decodeOptions,
+                    decodeHints != null ? decodeHints : decodeOptions.getHints());
+            if (decodeOptions.isMultiple()) {
+                return decodeContext.decodeMultiple(luminanceSource);
+            }
+            Result result = decodeContext.decode(luminanceSource);
+            return result == null ? null : new Result[]{result};
+        }
+
+        /**
+         * Result points are relative to the decoded, possibly subsampled, crop: move them back
+         * into the full frame.
+         */
+        private Result[] toFrameCoordinates(Result[] results, int left, int top, int scale) {
+            if (left == 0 && top == 0 && scale == 1) {
+                return results;
+            }
+            Result[] moved = new Result[results.length];
+            for (int i = 0; i < results.length; i++) {
+                Result result = results[i];
+                ResultPoint[] points = result.getResultPoints();
+                ResultPoint[] framePoints = null;
+                if (points != null) {
+                    framePoints = new ResultPoint[points.length];
+                    for (int j = 0; j < points.length; j++) {
+                        framePoints[j] = new ResultPoint(points[j].getX() * scale + left,
+                                points[j].getY() * scale + top);
+                    }
+                }
+                moved[i] = new Result(result.getText(), result.getRawBytes(), framePoints,
+                        result.getBarcodeFormat(), result.getTimestamp());
+                moved[i].putAllMetadata(result.getResultMetadata());
+            }
+            return moved;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package tech.gentleflow.qr_scan.decode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+
+/**
+ * Measures how bright a frame is and how much contrast it has, from a sparse grid of the
+ * luminance plane: one pixel in {@link #STEP} of one row in {@link #STEP}, 1/64 of the frame,
+ * which is plenty for the light of a scene and takes a few microseconds.
+ * <p>
+ * The contrast is the spread of the samples once the darkest and brightest
+ * {@link #TAIL_SHARE} are left out, so a few specular highlights or black borders do not count.
+ * Plain Java, not thread safe.
+ */
+public final class LightMeter {
+
+    static final int STEP = 8;
+    /**
+     * Share of the samples left out at each end of the histogram for the contrast
+     */
+    static final float TAIL_SHARE = 0.05f;
+    private static final int BIN_SHIFT = 2;
+
+    private final int[] histogram = new int[256 >> BIN_SHIFT];
+    private int mean;
+    private int contrast;
+
+    /**
+     * Measures a frame, read with {@link #getMean()} and {@link #getContrast()}.
+     */
+    public void measure(Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int rowStride = frame.getRowStride();
+        byte[] data = frame.getData();
+        ByteBuffer plane = frame.getPlane();
+        Arrays.fill(histogram, 0);
+        long sum = 0;
+        int count = 0;
+        // Half a step in, so the edges of the frame, often vignetted, weigh no more than the rest
+        for (int y = STEP / 2; y < height; y += STEP) {
+            int offset = y * rowStride;
+            for (int x = STEP / 2; x < width; x += STEP) {
+                int luminance = (data != null ? data[offset + x] : plane.get(offset + x)) & 0xff;
+                sum += luminance;
+                histogram[luminance >> BIN_SHIFT]++;
+                count++;
+            }
+        }
+        if (count == 0) {
+            mean = 0;
+            contrast = 0;
+            return;
+        }
+        mean = (int) (sum / count);
+        int tail = (int) (count * TAIL_SHARE);
+        contrast = (percentileBin(tail, false) - percentileBin(tail, true)) << BIN_SHIFT;
+    }
+
+    /**
+     * @return the bin holding the sample {@code skipped} samples in from the dark or the bright
+     * end
+     */
+    private int percentileBin(int skipped, boolean fromDark) {
+        int seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            int bin = fromDark ? i : histogram.length - 1 - i;
+            seen += histogram[bin];
+            if (seen > skipped) {
+                return bin;
+            }
+        }
+        return fromDark ? histogram.length - 1 : 0;
+    }
+
+    /**
+     * @return the mean luminance of the last frame, 0 to 255
+     */
+    public int getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the spread of the luminance of the last frame, 0 to 255
+     */
+    public int getContrast() {
+        return contrast;
+    }
+}
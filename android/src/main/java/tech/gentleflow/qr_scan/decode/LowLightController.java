@@ -0,0 +1,213 @@
+package tech.gentleflow.qr_scan.decode;
+
+import java.util.concurrent.TimeUnit;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+
+/**
+ * Adds light when frames stay too dark, or too flat, to decode: first by raising the exposure
+ * compensation, then with the torch, and takes it back once frames are bright again.
+ * <p>
+ * Decoded frames are measured with a {@link LightMeter} at most every
+ * {@link #MEASURE_INTERVAL_NANOS}. A frame is dim when its mean luminance is under
+ * {@link #DARK_MEAN}, or under {@link #DIM_MEAN} with a contrast under {@link #LOW_CONTRAST}.
+ * The level goes up once frames stayed dim for {@link #STEP_UP_NANOS}, and down once they stayed
+ * brighter than the threshold of the level for {@link #STEP_DOWN_NANOS}. The thresholds rise
+ * with the level, since the raised exposure and the torch brighten the frames themselves. A level
+ * coming back soon after it was left is held twice as long the next time, so the light does not
+ * flicker.
+ * <p>
+ * Disabled by default. Times are {@link System#nanoTime()} values. Thread safe.
+ */
+public final class LowLightController {
+
+    public enum Level {
+        /**
+         * The camera exposes the scene on its own.
+         */
+        NORMAL,
+        /**
+         * Exposure compensation raised by {@link #RAISED_EXPOSURE}.
+         */
+        EXPOSURE,
+        /**
+         * Torch on, exposure compensation back to none.
+         */
+        TORCH
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the decode thread when the level changes, with the frame that changed it.
+         */
+        void onLightLevelChanged(Level level, int mean, int contrast);
+    }
+
+    /**
+     * Exposure compensation of {@link Level#EXPOSURE}, in EV
+     */
+    public static final float RAISED_EXPOSURE = 1.5f;
+    static final long MEASURE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    static final int DARK_MEAN = 50;
+    static final int DIM_MEAN = 100;
+    static final int LOW_CONTRAST = 40;
+    /**
+     * Mean luminance above which frames are bright at each level, a torch lit scene has to be
+     * close to saturation to do without it
+     */
+    private static final int[] BRIGHT_MEAN = {Integer.MAX_VALUE, 150, 200};
+    static final long STEP_UP_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+    static final long STEP_DOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(3000);
+    /**
+     * Stepping up again this soon after stepping down doubles how long the level is held
+     */
+    private static final long RELAPSE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int MAX_HOLD_DOUBLINGS = 3;
+
+    private final LightMeter meter = new LightMeter();
+    private boolean enabled;
+    private Listener listener;
+    private Level level = Level.NORMAL;
+    private int mean;
+    private int contrast;
+    private long nextMeasureAt;
+    private boolean dim;
+    private long dimSince;
+    private boolean bright;
+    private long brightSince;
+    private boolean steppedDown;
+    private long steppedDownAt;
+    private int holdDoublings;
+    private long changeCount;
+
+    /**
+     * @param enabled false goes back to {@link Level#NORMAL} without telling the listener
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            reset();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forgets the scene and goes back to {@link Level#NORMAL} without telling the listener, e.g.
+     * when the camera closes and forgets the light it was given.
+     */
+    public synchronized void reset() {
+        level = Level.NORMAL;
+        nextMeasureAt = 0;
+        dim = false;
+        bright = false;
+        steppedDown = false;
+        holdDoublings = 0;
+    }
+
+    /**
+     * Measures the frame, unless one was measured less than {@link #MEASURE_INTERVAL_NANOS} ago.
+     * Called on the decode thread before the frame is decoded.
+     *
+     * @return true if the level changed
+     */
+    public boolean onFrame(Frame frame, long now) {
+        Listener levelListener;
+        Level changed;
+        int frameMean;
+        int frameContrast;
+        synchronized (this) {
+            if (!enabled || now - nextMeasureAt < 0) {
+                return false;
+            }
+            nextMeasureAt = now + MEASURE_INTERVAL_NANOS;
+            meter.measure(frame);
+            if (!update(meter.getMean(), meter.getContrast(), now)) {
+                return false;
+            }
+            levelListener = listener;
+            changed = level;
+            frameMean = mean;
+            frameContrast = contrast;
+        }
+        if (levelListener != null) {
+            levelListener.onLightLevelChanged(changed, frameMean, frameContrast);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the level changed
+     */
+    synchronized boolean update(int mean, int contrast, long now) {
+        this.mean = mean;
+        this.contrast = contrast;
+        boolean frameDim = mean < DARK_MEAN || mean < DIM_MEAN && contrast < LOW_CONTRAST;
+        if (frameDim && !dim) {
+            dimSince = now;
+        }
+        dim = frameDim;
+        boolean frameBright = mean > BRIGHT_MEAN[level.ordinal()];
+        if (frameBright && !bright) {
+            brightSince = now;
+        }
+        bright = frameBright;
+
+        if (dim && level != Level.TORCH && now - dimSince >= STEP_UP_NANOS) {
+            if (steppedDown && now - steppedDownAt < RELAPSE_NANOS) {
+                holdDoublings = Math.min(holdDoublings + 1, MAX_HOLD_DOUBLINGS);
+            }
+            setLevel(Level.values()[level.ordinal() + 1]);
+            return true;
+        }
+        if (bright && level != Level.NORMAL
+                && now - brightSince >= STEP_DOWN_NANOS << holdDoublings) {
+            setLevel(Level.values()[level.ordinal() - 1]);
+            steppedDown = true;
+            steppedDownAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    private void setLevel(Level level) {
+        this.level = level;
+        // Frames are measured again at the new level
+        dim = false;
+        bright = false;
+        changeCount++;
+    }
+
+    public synchronized Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the mean luminance of the last frame measured, 0 to 255
+     */
+    public synchronized int getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the luminance spread of the last frame measured, 0 to 255
+     */
+    public synchronized int getContrast() {
+        return contrast;
+    }
+
+    public synchronized long getChangeCount() {
+        return changeCount;
+    }
+
+    public synchronized void resetCounters() {
+        changeCount = 0;
+    }
+}
@@ -0,0 +1,82 @@
+package tech.gentleflow.qr_scan.decode;
+
+/**
+ * Helpers for 8 bit luminance planes stored row by row.
+ */
+public final class LuminancePlanes {
+
+    private LuminancePlanes() {
+    }
+
+    /**
+     * Picks the image sample size, a power of two as image decoders round down to one, so the
+     * sampled image holds at most {@code maxPixels} pixels whatever its aspect ratio.
+     *
+     * @return 1, 2, 4... each side of the image is divided by
+     */
+    public static int sampleSize(int width, int height, long maxPixels) {
+        int sampleSize = 1;
+        while ((long) (width / sampleSize) * (height / sampleSize) > maxPixels) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Converts ARGB pixels to luminance with the weights of RGBLuminanceSource, so a plane built
+     * row by row decodes exactly like one built from the whole pixel array.
+     *
+     * @param count  pixels to convert, from the start of {@code pixels}
+     * @param offset where the first luminance goes in {@code plane}
+     */
+    public static void fromArgb(int[] pixels, int count, byte[] plane, int offset) {
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            int r = (pixel >> 16) & 0xff;
+            int g2 = (pixel >> 7) & 0x1fe;
+            int b = pixel & 0xff;
+            plane[offset + i] = (byte) ((r + g2 + b) / 4);
+        }
+    }
+
+    /**
+     * Rotates a plane clockwise. For 90 and 270 degrees the width and height of the result are
+     * swapped.
+     *
+     * @param degrees 0, 90, 180 or 270
+     * @return the rotated plane, or {@code plane} itself for 0 degrees
+     */
+    public static byte[] rotate(byte[] plane, int width, int height, int degrees) {
+        degrees = (degrees % 360 + 360) % 360;
+        if (degrees == 0) {
+            return plane;
+        }
+        byte[] rotated = new byte[width * height];
+        switch (degrees) {
+            case 90:
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0, offset = y * width; x < width; x++) {
+                        rotated[x * height + height - 1 - y] = plane[offset + x];
+                    }
+                }
+                break;
+            case 180:
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0, offset = y * width; x < width; x++) {
+                        rotated[(height - 1 - y) * width + width - 1 - x] = plane[offset + x];
+                    }
+                }
+                break;
+            case 270:
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0, offset = y * width; x < width; x++) {
+                        rotated[(width - 1 - x) * height + y] = plane[offset + x];
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Bad rotation: " + degrees);
+        }
+        return rotated;
+    }
+}
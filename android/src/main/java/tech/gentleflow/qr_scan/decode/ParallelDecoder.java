@@ -0,0 +1,139 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a single image by racing the passes of its {@link DecodeOptions} on a thread pool,
+ * plus a 90 degree rotated pass when 1D formats are looked for, so the worst case latency is the
+ * slowest single pass instead of the sum of all of them.
+ * <p>
+ * The first pass that finds a code wins. The passes of an image share a flag, set once the race
+ * is over, which each of them checks before rotating, binarizing and reading: a ZXing reader
+ * cannot be interrupted, but the losing passes give up at their next step instead of keeping
+ * every core busy until they are done. {@code ForkJoinPool} needs API 21, so the pool is a plain
+ * {@link ExecutorService}.
+ */
+public final class ParallelDecoder {
+
+    private final ExecutorService executor;
+    private final ThreadLocal<DecodeContext> decodeContext = new ThreadLocal<DecodeContext>() {
+        @Override
+        protected DecodeContext initialValue() {
+            return new DecodeContext(DecodeOptions.DEFAULT);
+        }
+    };
+
+    public ParallelDecoder(int threads) {
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "QrParallelDecode-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Decodes a luminance plane, blocking until a pass found a code or all passes failed.
+     *
+     * @return the first result found, or null
+     */
+    public Result decode(final byte[] luminances, final int width, final int height,
+                         final DecodeOptions options) throws InterruptedException {
+        final LuminanceSource source =
+                new PlanarYUVLuminanceSource(luminances, width, height, 0, 0, width, height, false);
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Callable<Result>> passes = new ArrayList<>(4);
+        passes.add(pass(source, DecodeContext.Pass.HYBRID, options, done));
+        if (options.getEffort() == DecodeOptions.Effort.THOROUGH) {
+            passes.add(pass(source, DecodeContext.Pass.GLOBAL_HISTOGRAM, options, done));
+        }
+        if (options.getEffort() != DecodeOptions.Effort.FAST) {
+            passes.add(pass(source, DecodeContext.Pass.INVERTED, options, done));
+        }
+        if (options.hasOneDimensionalFormats()) {
+            passes.add(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    if (done.get()) {
+                        return null;
+                    }
+                    // Rotate on the worker, the copy runs in parallel with the other passes
+                    byte[] rotated = LuminancePlanes.rotate(luminances, width, height, 90);
+                    LuminanceSource rotatedSource = new PlanarYUVLuminanceSource(rotated, height,
+                            width, 0, 0, height, width, false);
+                    return pass(rotatedSource, DecodeContext.Pass.HYBRID, options, done).call();
+                }
+            });
+        }
+        CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Result>> futures = new ArrayList<>(passes.size());
+        try {
+            for (Callable<Result> pass : passes) {
+                futures.add(completion.submit(pass));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    Result result = completion.take().get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    // The other passes may still find the code
+                }
+            }
+            return null;
+        } finally {
+            // The passes still running give up at their next step, the queued ones never start
+            done.set(true);
+            for (Future<Result> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return a pass returning null when it finds nothing or the race is over
+     */
+    private Callable<Result> pass(final LuminanceSource source, final DecodeContext.Pass pass,
+                                  final DecodeOptions options, final AtomicBoolean done) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                if (done.get()) {
+                    return null;
+                }
+                DecodeContext context = decodeContext.get();
+                context.setOptions(options);
+                context.setCancellation(done);
+                try {
+                    return context.decode(source, pass);
+                } finally {
+                    context.setCancellation(null);
+                }
+            }
+        };
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
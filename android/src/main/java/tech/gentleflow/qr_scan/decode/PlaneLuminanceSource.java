@@ -0,0 +1,99 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.LuminanceSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A region of a luminance plane held in a {@link ByteBuffer}, e.g. the Y plane of a camera image
+ * with padding at the end of every row. Rows are read from the buffer when asked for, nothing is
+ * copied up front. Like {@link SubsampledLuminanceSource}, the region can be sampled every n-th
+ * pixel of every n-th row.
+ */
+public final class PlaneLuminanceSource extends LuminanceSource {
+
+    private final ByteBuffer plane;
+    private final int rowStride;
+    private final int dataWidth;
+    private final int dataHeight;
+    private final int left;
+    private final int top;
+    private final int factor;
+
+    /**
+     * @param plane     the plane, read from its position 0 and left untouched
+     * @param rowStride bytes between the starts of two rows
+     * @param left      left of the region in the plane
+     * @param top       top of the region in the plane
+     * @param width     width of the region in the plane, the source is width / factor wide
+     * @param height    height of the region in the plane, the source is height / factor high
+     * @param factor    keep one pixel out of factor in both directions, 1 to keep them all
+     */
+    public PlaneLuminanceSource(ByteBuffer plane, int rowStride, int dataWidth, int dataHeight,
+                                int left, int top, int width, int height, int factor) {
+        super(width / factor, height / factor);
+        if (factor < 1 || left < 0 || top < 0 || left + width > dataWidth
+                || top + height > dataHeight || rowStride < dataWidth) {
+            throw new IllegalArgumentException("Region must fit inside the plane.");
+        }
+        // Own position and limit, the buffer may be shared with other readers
+        this.plane = plane.duplicate();
+        this.plane.clear();
+        this.rowStride = rowStride;
+        this.dataWidth = dataWidth;
+        this.dataHeight = dataHeight;
+        this.left = left;
+        this.top = top;
+        this.factor = factor;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        readRow(y, row, 0);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        byte[] matrix = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            readRow(y, matrix, y * width);
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new PlaneLuminanceSource(plane, rowStride, dataWidth, dataHeight,
+                this.left + left * factor, this.top + top * factor, width * factor,
+                height * factor, factor);
+    }
+
+    private void readRow(int y, byte[] destination, int offset) {
+        int width = getWidth();
+        int start = (top + y * factor) * rowStride + left;
+        if (factor == 1) {
+            // Bulk copy, a memcpy for a direct buffer
+            plane.position(start);
+            plane.get(destination, offset, width);
+            return;
+        }
+        for (int x = 0; x < width; x++) {
+            destination[offset + x] = plane.get(start + x * factor);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tech.gentleflow.qr_scan.decode;
+
+import java.nio.ByteBuffer;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+
+/**
+ * Skips frames too blurred to decode, from motion or a lens refocusing, before they are
+ * binarized, so the decode thread is free for the next, sharper frame.
+ * <p>
+ * Sharpness is the variance of the Laplacian of the luminance, taken on a grid of at most
+ * {@link #MAX_SAMPLES} pixels of the part of the frame to decode. What a sharp frame scores
+ * depends on the camera and the scene, so the threshold is learnt: a share,
+ * {@link #THRESHOLD_SHARE}, of the average sharpness of the frames that decoded. Nothing is
+ * skipped before the first decode, and a frame is let through after
+ * {@link #MAX_SKIPS_IN_A_ROW} skips, so the threshold also comes down in a scene with less
+ * detail.
+ * <p>
+ * Skipped frames are counted as {@link DecodeMetrics.Counter#FRAMES_BLURRED}. Disabled by
+ * default. Thread safe.
+ */
+public final class SharpnessGate {
+
+    /**
+     * Pixels the Laplacian is taken at, 1/16 of a 720p frame
+     */
+    static final int MAX_SAMPLES = 16384;
+    static final float THRESHOLD_SHARE = 0.4f;
+    static final int MAX_SKIPS_IN_A_ROW = 8;
+    private static final double ALPHA = 0.2;
+    /**
+     * Smallest spacing of the grid, closer samples add little
+     */
+    private static final int MIN_STEP = 4;
+
+    private boolean enabled;
+    // Average sharpness of decoded frames, 0 before the first one
+    private double reference;
+    private int skipsInARow;
+    private int lastSharpness;
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        skipsInARow = 0;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false if the frame of this sharpness should not be decoded
+     */
+    public synchronized boolean accept(int sharpness) {
+        lastSharpness = sharpness;
+        if (!enabled || sharpness >= getThreshold() || skipsInARow >= MAX_SKIPS_IN_A_ROW) {
+            skipsInARow = 0;
+            return true;
+        }
+        skipsInARow++;
+        return false;
+    }
+
+    /**
+     * Learns from a frame that decoded.
+     */
+    public synchronized void onDecoded(int sharpness) {
+        reference = reference == 0 ? sharpness : reference + ALPHA * (sharpness - reference);
+    }
+
+    /**
+     * @return the sharpness under which frames are skipped, 0 until a frame decoded
+     */
+    public synchronized int getThreshold() {
+        return (int) (reference * THRESHOLD_SHARE);
+    }
+
+    public synchronized int getLastSharpness() {
+        return lastSharpness;
+    }
+
+    /**
+     * @return the variance of the 4-neighbour Laplacian over a grid of the crop, higher is sharper
+     */
+    public static int measure(Frame frame, int left, int top, int width, int height) {
+        int step = MIN_STEP;
+        while ((long) (width / step) * (height / step) > MAX_SAMPLES) {
+            step *= 2;
+        }
+        int rowStride = frame.getRowStride();
+        byte[] data = frame.getData();
+        ByteBuffer plane = frame.getPlane();
+        long sum = 0;
+        long sumOfSquares = 0;
+        int count = 0;
+        // One pixel in from the edges of the crop, for the neighbours
+        for (int y = top + 1; y < top + height - 1; y += step) {
+            int offset = y * rowStride;
+            for (int x = left + 1; x < left + width - 1; x += step) {
+                int i = offset + x;
+                int laplacian = data != null
+                        ? 4 * (data[i] & 0xff) - (data[i - 1] & 0xff) - (data[i + 1] & 0xff)
+                        - (data[i - rowStride] & 0xff) - (data[i + rowStride] & 0xff)
+                        : 4 * (plane.get(i) & 0xff) - (plane.get(i - 1) & 0xff)
+                        - (plane.get(i + 1) & 0xff) - (plane.get(i - rowStride) & 0xff)
+                        - (plane.get(i + rowStride) & 0xff);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long mean = sum / count;
+        return (int) Math.min(sumOfSquares / count - mean * mean, Integer.MAX_VALUE);
+    }
+}
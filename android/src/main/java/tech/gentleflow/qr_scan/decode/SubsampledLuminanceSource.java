@@ -0,0 +1,87 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * A view of a region of a luminance plane, e.g. the Y plane of an NV21 frame, keeping every
+ * n-th pixel of every n-th row. Nothing is copied up front: rows are sampled from the plane when
+ * asked for, so building the coarse level of a pyramid costs nothing and binarizing it a 1/n^2
+ * of the full resolution.
+ */
+public final class SubsampledLuminanceSource extends LuminanceSource {
+
+    private final byte[] data;
+    private final int dataWidth;
+    private final int dataHeight;
+    private final int left;
+    private final int top;
+    private final int factor;
+
+    /**
+     * @param left   left of the region in the plane
+     * @param top    top of the region in the plane
+     * @param width  width of the region in the plane, the source is width / factor wide
+     * @param height height of the region in the plane, the source is height / factor high
+     * @param factor keep one pixel out of factor, in both directions
+     */
+    public SubsampledLuminanceSource(byte[] data, int dataWidth, int dataHeight, int left,
+                                     int top, int width, int height, int factor) {
+        super(width / factor, height / factor);
+        if (factor < 1 || left < 0 || top < 0 || left + width > dataWidth
+                || top + height > dataHeight) {
+            throw new IllegalArgumentException("Region must fit inside the plane.");
+        }
+        this.data = data;
+        this.dataWidth = dataWidth;
+        this.dataHeight = dataHeight;
+        this.left = left;
+        this.top = top;
+        this.factor = factor;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        int offset = (top + y * factor) * dataWidth + left;
+        for (int x = 0; x < width; x++) {
+            row[x] = data[offset + x * factor];
+        }
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        byte[] matrix = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            int offset = (top + y * factor) * dataWidth + left;
+            for (int x = 0; x < width; x++) {
+                matrix[y * width + x] = data[offset + x * factor];
+            }
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new SubsampledLuminanceSource(data, dataWidth, dataHeight,
+                this.left + left * factor, this.top + top * factor, width * factor,
+                height * factor, factor);
+    }
+}
@@ -0,0 +1,78 @@
+package tech.gentleflow.qr_scan.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame lent by a {@link FrameSource}: either an NV21 buffer, or the luminance plane of a
+ * camera image read in place, possibly with padding at the end of every row.
+ * <p>
+ * Sources keep one frame object per buffer and refill it, so delivering a frame creates no
+ * objects. A frame must not be used once it was released.
+ */
+public final class Frame {
+
+    private byte[] data;
+    private ByteBuffer plane;
+    private int width;
+    private int height;
+    private int rowStride;
+
+    public Frame() {
+    }
+
+    public Frame(byte[] data, int width, int height) {
+        setData(data, width, height);
+    }
+
+    /**
+     * @param data an NV21 frame, or any buffer starting with a width * height luminance plane
+     */
+    public void setData(byte[] data, int width, int height) {
+        this.data = data;
+        this.plane = null;
+        this.width = width;
+        this.height = height;
+        this.rowStride = width;
+    }
+
+    /**
+     * @param plane     the luminance plane, one byte per pixel, read from its position 0
+     * @param rowStride bytes between the starts of two rows, at least width
+     */
+    public void setPlane(ByteBuffer plane, int rowStride, int width, int height) {
+        if (rowStride < width) {
+            throw new IllegalArgumentException("Row stride must be at least the width.");
+        }
+        this.data = null;
+        this.plane = plane;
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+    }
+
+    /**
+     * @return the NV21 buffer, null for a frame read in place with {@link #getPlane()}
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the luminance plane, null for an NV21 frame
+     */
+    public ByteBuffer getPlane() {
+        return plane;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+}
@@ -0,0 +1,37 @@
+package tech.gentleflow.qr_scan.frame;
+
+/**
+ * Something that produces preview frames: the camera, or a recording replayed without a device.
+ */
+public interface FrameSource {
+
+    interface FrameCallback {
+
+        /**
+         * Called for every frame, on a thread of the source. The frame must be handed back with
+         * {@link FrameSource#releaseFrame(Frame)} once it is no longer needed.
+         */
+        void onFrame(Frame frame, FrameSource source);
+    }
+
+    /**
+     * @param callback receives the frames, null to stop receiving them
+     */
+    void setFrameCallback(FrameCallback callback);
+
+    /**
+     * @return the width of the frames, 0 while unknown
+     */
+    int getFrameWidth();
+
+    /**
+     * @return the height of the frames, 0 while unknown
+     */
+    int getFrameHeight();
+
+    /**
+     * Gives a delivered frame back so its buffer can be filled again. Frames not delivered by
+     * this source are ignored.
+     */
+    void releaseFrame(Frame frame);
+}
@@ -0,0 +1,248 @@
+package tech.gentleflow.qr_scan.frame;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays recorded NV21 frames at a fixed frame rate, so the live pipeline can run without a
+ * camera.
+ * <p>
+ * The recording is raw frames of width * height * 3 / 2 bytes back to back, the output of
+ * e.g. {@code ffmpeg -i clip.mp4 -f rawvideo -pix_fmt nv21 clip.nv21}. Like the camera, the
+ * source owns a few buffers: when all of them are held by the consumer at the time a frame is
+ * due, that frame is dropped and counted.
+ */
+public final class RecordedFrameSource implements FrameSource {
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final long periodNanos;
+    private final boolean loop;
+    private final Frame[] frames;
+    private final boolean[] lent;
+
+    private volatile FrameCallback callback;
+    private Thread thread;
+    private boolean finished;
+    private long deliveredCount;
+    private long droppedCount;
+
+    /**
+     * @param fps         frames per second the recording is played at
+     * @param bufferCount frames the consumer may hold at once
+     * @param loop        start over at the end of the recording instead of finishing
+     */
+    public RecordedFrameSource(File file, int width, int height, double fps, int bufferCount,
+                               boolean loop) {
+        if (fps <= 0 || bufferCount <= 0) {
+            throw new IllegalArgumentException("fps and buffer count must be greater than 0.");
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+        this.loop = loop;
+        frames = new Frame[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            frames[i] = new Frame(new byte[width * height * 3 / 2], width, height);
+        }
+        lent = new boolean[bufferCount];
+    }
+
+    /**
+     * @return how many frames the recording holds
+     */
+    public static long frameCount(File file, int width, int height) {
+        return file.length() / (width * height * 3 / 2);
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public int getFrameWidth() {
+        return width;
+    }
+
+    @Override
+    public int getFrameHeight() {
+        return height;
+    }
+
+    /**
+     * Starts playing on a new thread, the first frame is delivered right away.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        finished = false;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    play();
+                } catch (IOException e) {
+                    // Treated as the end of the recording
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+                synchronized (RecordedFrameSource.this) {
+                    finished = true;
+                    RecordedFrameSource.this.notifyAll();
+                }
+            }
+        }, "QrFrameReplay");
+        thread.start();
+    }
+
+    /**
+     * Stops playing and waits for the player thread to end.
+     */
+    public void stop() throws InterruptedException {
+        Thread playing;
+        synchronized (this) {
+            playing = thread;
+            thread = null;
+        }
+        if (playing != null) {
+            playing.interrupt();
+            playing.join();
+        }
+    }
+
+    /**
+     * Waits until the recording played to its end or the source was stopped.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public synchronized boolean awaitFinished(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!finished) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void releaseFrame(Frame frame) {
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] == frame) {
+                lent[i] = false;
+                return;
+            }
+        }
+    }
+
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return how many frames were due while the consumer held every buffer.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private void play() throws IOException, InterruptedException {
+        int frameSize = width * height * 3 / 2;
+        long due = System.nanoTime();
+        do {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), frameSize);
+            try {
+                while (true) {
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    due += periodNanos;
+
+                    Frame frame = takeFrame();
+                    if (frame == null) {
+                        if (!skipFully(in, frameSize)) {
+                            break;
+                        }
+                        count(false);
+                        continue;
+                    }
+                    if (!readFully(in, frame.getData())) {
+                        releaseFrame(frame);
+                        break;
+                    }
+                    count(true);
+                    FrameCallback frameCallback = callback;
+                    if (frameCallback == null) {
+                        releaseFrame(frame);
+                    } else {
+                        frameCallback.onFrame(frame, this);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } while (loop);
+    }
+
+    private synchronized Frame takeFrame() {
+        for (int i = 0; i < frames.length; i++) {
+            if (!lent[i]) {
+                lent[i] = true;
+                return frames[i];
+            }
+        }
+        return null;
+    }
+
+    private synchronized void count(boolean delivered) {
+        if (delivered) {
+            deliveredCount++;
+        } else {
+            droppedCount++;
+        }
+    }
+
+    /**
+     * @return false at the end of the recording
+     */
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int count = in.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+        return true;
+    }
+}
@@ -15,65 +15,95 @@
  */
 package tech.gentleflow.qr_scan.readerView;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.hardware.Camera;
-import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.os.Build;
+import android.os.PowerManager;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.WindowManager;
 
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.ChecksumException;
 import com.google.zxing.DecodeHintType;
-import com.google.zxing.FormatException;
-import com.google.zxing.LuminanceSource;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
-import com.google.zxing.PlanarYUVLuminanceSource;
 import com.google.zxing.Result;
 import com.google.zxing.ResultPoint;
 import com.google.zxing.client.android.camera.CameraManager;
-import com.google.zxing.common.HybridBinarizer;
-import com.google.zxing.qrcode.QRCodeReader;
+import com.google.zxing.client.android.camera.PreviewBufferPool;
+
+import tech.gentleflow.qr_scan.camera.AsyncCameraBackend;
+import tech.gentleflow.qr_scan.camera.Camera2Backend;
+import tech.gentleflow.qr_scan.camera.CameraBackend;
+import tech.gentleflow.qr_scan.camera.CameraProfileStore;
+import tech.gentleflow.qr_scan.decode.DecodeGovernor;
+import tech.gentleflow.qr_scan.decode.DecodeMetrics;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
+import tech.gentleflow.qr_scan.decode.DuplicateFilter;
+import tech.gentleflow.qr_scan.decode.FramePipeline;
+import tech.gentleflow.qr_scan.decode.LowLightController;
+import tech.gentleflow.qr_scan.decode.SharpnessGate;
+import tech.gentleflow.qr_scan.frame.Frame;
+import tech.gentleflow.qr_scan.frame.FrameSource;
 
-import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.util.Map;
 
-import static android.hardware.Camera.getCameraInfo;
-import static tech.gentleflow.qr_scan.QRCodeDecoder.HINTS;
-
 /**
  * QRCodeReaderView Class which uses ZXING lib and let you easily integrate a QR decoder view.
  * Take some classes and made some modifications in the original ZXING - Barcode Scanner project.
  *
  * @author David Lázaro
  */
-public class QRCodeReaderView extends SurfaceView
-        implements SurfaceHolder.Callback, Camera.PreviewCallback {
+public class QRCodeReaderView extends SurfaceView implements SurfaceHolder.Callback {
 
     public interface OnQRCodeReadListener {
 
-        void onQRCodeRead(String text, PointF[] points);
+        /**
+         * @param results the codes found in a frame, a single one unless
+         *                {@link DecodeOptions#isMultiple()}
+         * @param points  result points of each code in view coordinates
+         */
+        void onQRCodeRead(Result[] results, PointF[][] points);
     }
 
     private OnQRCodeReadListener mOnQRCodeReadListener;
 
     private static final String TAG = QRCodeReaderView.class.getName();
 
-    private QRCodeReader mQRCodeReader;
-    private int mPreviewWidth;
-    private int mPreviewHeight;
-    private CameraManager mCameraManager;
-    private boolean mQrDecodingEnabled = true;
-    private DecodeFrameTask decodeFrameTask;
-    private Map<DecodeHintType, Object> decodeHints;
+    // Opened and driven on a thread of its own
+    private AsyncCameraBackend mCamera;
+    // Main thread only, true from the camera being open to the surface being destroyed
+    private boolean mCameraOpened;
+    private CameraProfileStore mProfileStore;
+    private final FramePipeline mFramePipeline = new FramePipeline();
+    private final QRToViewPointTransformer mQrToViewPointTransformer =
+            new QRToViewPointTransformer();
+    private Rect mScanWindow;
+    // Main thread only: the torch asked for with setTorchEnabled, and the light the camera was
+    // given for the light level
+    private boolean mTorchEnabled;
+    private LowLightController.Level mLightLevel = LowLightController.Level.NORMAL;
+    private LowLightController.Listener mOnLightLevelChangedListener;
+    private volatile boolean mLoggingEnabled;
+    private long mLastLogAt = System.nanoTime();
+
+    /**
+     * How often the metrics are logged while logging is enabled
+     */
+    private static final long LOG_INTERVAL_NANOS = 5000000000L;
+
+    /**
+     * Below this battery level, while not charging, the decode rate is constrained
+     */
+    private static final int LOW_BATTERY_PERCENT = 15;
 
     public QRCodeReaderView(Context context) {
         this(context, null);
@@ -87,15 +117,53 @@ public class QRCodeReaderView extends SurfaceView
         }
 
         if (checkCameraHardware()) {
-            mCameraManager = new CameraManager(getContext());
-            mCameraManager.setPreviewCallback(this);
+            mFramePipeline.setListener(mResultListener);
+            mFramePipeline.setFocusListener(mFocusListener);
+            mFramePipeline.getLightController().setListener(mLightListener);
             getHolder().addCallback(this);
-            setBackCamera();
+            mProfileStore = new CameraProfileStore(context);
+            setCameraBackend(Camera2Backend.isPreferred(context)
+                    ? new Camera2Backend(context) : new CameraManager(context));
         } else {
             throw new RuntimeException("Error: Camera not found");
         }
     }
 
+    /**
+     * Replace the camera, e.g. to force the legacy Camera API on a device that has Camera2, or
+     * to run the view without a device. Call it before the surface is created, the settings
+     * of the previous camera are not carried over.
+     * default is Camera2 when the device supports more than its legacy level
+     *
+     * @param cameraBackend the camera to use from now on
+     */
+    public void setCameraBackend(CameraBackend cameraBackend) {
+        if (mCamera != null) {
+            mCamera.setFrameCallback(null);
+            mCamera.close();
+            mCamera.release();
+        }
+        mCamera = new AsyncCameraBackend(cameraBackend);
+        mCamera.setOpenListener(mOpenListener);
+        mCamera.setFrameCallback(mFrameCallback);
+        setBackCamera();
+    }
+
+    public CameraBackend getCameraBackend() {
+        return mCamera.getBackend();
+    }
+
+    /**
+     * Starts opening the camera before the surface exists, e.g. as soon as the view is created,
+     * so the preview starts sooner. The camera is opened off the main thread either way.
+     *
+     * @param width  width the view will have
+     * @param height height the view will have
+     */
+    public void prepareCamera(int width, int height) {
+        mCamera.prepare(width, height);
+    }
+
     /**
      * Set the callback to return decoding result
      *
@@ -111,6 +179,14 @@ public class QRCodeReaderView extends SurfaceView
      * @param enabled logging enabled/disabled.
      */
     public void setLoggingEnabled(boolean enabled) {
+        mLoggingEnabled = enabled;
+    }
+
+    /**
+     * @return counters and per stage latencies of the scan pipeline
+     */
+    public DecodeMetrics getDecodeMetrics() {
+        return mFramePipeline.getMetrics();
     }
 
     /**
@@ -120,7 +196,7 @@ public class QRCodeReaderView extends SurfaceView
      * @param qrDecodingEnabled decoding enabled/disabled.
      */
     public void setQRDecodingEnabled(boolean qrDecodingEnabled) {
-        this.mQrDecodingEnabled = qrDecodingEnabled;
+        mFramePipeline.setEnabled(qrDecodingEnabled);
     }
 
     /**
@@ -129,21 +205,169 @@ public class QRCodeReaderView extends SurfaceView
      * @param decodeHints hints for decoding qrcode
      */
     public void setDecodeHints(Map<DecodeHintType, Object> decodeHints) {
-        this.decodeHints = decodeHints;
+        mFramePipeline.setDecodeHints(decodeHints);
+    }
+
+    /**
+     * Set the barcode formats to look for and how hard to try on each frame.
+     * When only QR codes are requested the other readers never run, with
+     * {@link DecodeOptions#isMultiple()} every code of a frame is reported at once.
+     * default value is {@link DecodeOptions#DEFAULT}, which does not try harder on missed frames,
+     * use {@link DecodeOptions.Effort#THOROUGH} for that.
+     *
+     * @param decodeOptions formats and effort, also used as decode hints
+     */
+    public void setDecodeOptions(DecodeOptions decodeOptions) {
+        mFramePipeline.setDecodeOptions(decodeOptions);
+    }
+
+    /**
+     * Restrict decoding to a window of the view, e.g. the scan box drawn over the preview.
+     * Only the matching part of each preview frame is binarized and searched, so the cost of a
+     * decode scales with the window rather than with the camera sensor.
+     *
+     * @param scanWindow window in view coordinates, null to decode the whole preview.
+     */
+    public void setScanWindow(Rect scanWindow) {
+        mScanWindow = scanWindow == null ? null : new Rect(scanWindow);
+        updateFramingRect();
+    }
+
+    /**
+     * Stop reporting a code again while it stays in view. Repeats of a delivered code are dropped
+     * on the decode thread for ttlMillis and only counted.
+     * disabled by default
+     *
+     * @param capacity  how many distinct codes are remembered
+     * @param ttlMillis how long a delivered code is suppressed, 0 disables the filter
+     */
+    public void setDuplicateFilter(int capacity, long ttlMillis) {
+        mFramePipeline.setDuplicateFilter(
+                ttlMillis > 0 ? new DuplicateFilter(capacity, ttlMillis) : null);
+    }
+
+    /**
+     * @return the filter dropping repeated codes, or null if every decoded code is reported
+     */
+    public DuplicateFilter getDuplicateFilter() {
+        return mFramePipeline.getDuplicateFilter();
+    }
+
+    /**
+     * Adapt the decode rate to the measured decode latency and to what is in view: full rate
+     * while codes or finder patterns are seen, slower once the scene stays empty, and at most
+     * half rate on battery saver, low battery or a low memory device.
+     * default value is true
+     *
+     * @param enabled false decodes every frame the decode thread can take
+     */
+    public void setAdaptiveDecodeRate(boolean enabled) {
+        mFramePipeline.getGovernor().setEnabled(enabled);
+    }
+
+    /**
+     * Search high resolution previews at half or quarter resolution first, and at full
+     * resolution only when the coarse search sees a code it cannot read, or every few frames.
+     * default value is false
+     *
+     * @param enabled true to decode coarse to fine
+     */
+    public void setPyramidDecoding(boolean enabled) {
+        mFramePipeline.setPyramid(enabled);
+    }
+
+    /**
+     * Once a code is read, search only around it in the next frames, widening the search step
+     * by step while it is missed, so following a moving code costs as much as the code is large
+     * rather than the preview. Has no effect when every code of a frame is reported.
+     * default value is false
+     *
+     * @param enabled true to track the last code
+     */
+    public void setTracking(boolean enabled) {
+        mFramePipeline.setTracking(enabled);
+    }
+
+    /**
+     * Skip frames too blurred to decode, e.g. while the phone moves or the lens refocuses, before
+     * they are binarized. The threshold is learnt from the frames that decode.
+     * default value is false
+     *
+     * @param enabled true to skip blurred frames
+     */
+    public void setSharpnessGate(boolean enabled) {
+        mFramePipeline.getSharpnessGate().setEnabled(enabled);
+    }
+
+    /**
+     * @return the gate skipping blurred frames, to read its current state
+     */
+    public SharpnessGate getSharpnessGate() {
+        return mFramePipeline.getSharpnessGate();
+    }
+
+    /**
+     * @return the governor picking the decode rate, to read its current state
+     */
+    public DecodeGovernor getDecodeGovernor() {
+        return mFramePipeline.getGovernor();
+    }
+
+    /**
+     * Set how many reusable preview buffers are cycled between the camera and the decoder.
+     * 0 disables buffering and lets the camera allocate a new frame every time.
+     * default value is {@link PreviewBufferPool#DEFAULT_BUFFER_COUNT}
+     *
+     * @param count number of preview buffers
+     */
+    public void setPreviewBufferCount(int count) {
+        if (getCameraBackend() instanceof CameraManager) {
+            ((CameraManager) getCameraBackend()).setPreviewBufferCount(count);
+        }
+    }
+
+    /**
+     * @return the preview buffer pool of the running preview, or null if frames are not buffered
+     * or not read from the legacy Camera API
+     */
+    public PreviewBufferPool getPreviewBufferPool() {
+        return getCameraBackend() instanceof CameraManager
+                ? ((CameraManager) getCameraBackend()).getPreviewBufferPool() : null;
     }
 
     /**
      * Starts google.zxing.client.android.android.com.google.zxing.client.android.camera preview and decoding
      */
     public void startScan() {
-        mCameraManager.startPreview();
+        DuplicateFilter duplicateFilter = mFramePipeline.getDuplicateFilter();
+        if (duplicateFilter != null) {
+            duplicateFilter.clear();
+        }
+        updateDecodeConstraints();
+        mFramePipeline.getGovernor().reset(System.nanoTime());
+        mCamera.startPreview();
     }
 
     /**
      * Stop google.zxing.client.android.android.com.google.zxing.client.android.camera preview and decoding
      */
     public void stopScan() {
-        mCameraManager.stopPreview();
+        mCamera.stopPreview();
+    }
+
+    /**
+     * Closes the camera and stops decoding, e.g. when the view is disposed of before its surface
+     * was created, the camera opened by {@link #prepareCamera} is only closed with the surface
+     * otherwise. The camera opens again with the next surface.
+     */
+    public void closeCamera() {
+        mCameraOpened = false;
+        mCamera.stopPreview();
+        mFramePipeline.stop();
+        mCamera.close();
+        // The camera forgets the light it was given when it closes
+        mFramePipeline.getLightController().reset();
+        mLightLevel = LowLightController.Level.NORMAL;
     }
 
     /**
@@ -153,8 +377,8 @@ public class QRCodeReaderView extends SurfaceView
      * @param autofocusIntervalInMs autofocus interval value
      */
     public void setAutofocusInterval(long autofocusIntervalInMs) {
-        if (mCameraManager != null) {
-            mCameraManager.setAutofocusInterval(autofocusIntervalInMs);
+        if (mCamera != null) {
+            mCamera.setAutofocusInterval(autofocusIntervalInMs);
         }
     }
 
@@ -162,8 +386,8 @@ public class QRCodeReaderView extends SurfaceView
      * Trigger an auto focus
      */
     public void forceAutoFocus() {
-        if (mCameraManager != null) {
-            mCameraManager.forceAutoFocus();
+        if (mCamera != null) {
+            mCamera.forceAutoFocus();
         }
     }
 
@@ -174,9 +398,54 @@ public class QRCodeReaderView extends SurfaceView
      * @param enabled torch enabled/disabled.
      */
     public void setTorchEnabled(boolean enabled) {
-        if (mCameraManager != null) {
-            mCameraManager.setTorchEnabled(enabled);
+        mTorchEnabled = enabled;
+        applyTorch();
+    }
+
+    /**
+     * Raise the exposure, then turn the torch on, while the frames stay too dark or too flat to
+     * decode, and take it back once they are bright again. A torch turned on with
+     * {@link #setTorchEnabled(boolean)} stays on whatever the light level.
+     * default value is false
+     *
+     * @param enabled true to adjust the light to the frames
+     */
+    public void setLowLightBoost(boolean enabled) {
+        mFramePipeline.getLightController().setEnabled(enabled);
+        if (!enabled) {
+            applyLightLevel(LowLightController.Level.NORMAL);
+        }
+    }
+
+    /**
+     * @param listener told on the main thread when the light level changes, null for none
+     */
+    public void setOnLightLevelChangedListener(LowLightController.Listener listener) {
+        mOnLightLevelChangedListener = listener;
+    }
+
+    /**
+     * @return the controller picking the light level, to read its current state
+     */
+    public LowLightController getLightController() {
+        return mFramePipeline.getLightController();
+    }
+
+    private void applyTorch() {
+        if (mCamera != null) {
+            mCamera.setTorchEnabled(mTorchEnabled || mLightLevel == LowLightController.Level.TORCH);
+        }
+    }
+
+    private void applyLightLevel(LowLightController.Level level) {
+        if (level == mLightLevel) {
+            return;
         }
+        mLightLevel = level;
+        // The legacy camera sets the exposure along with the torch, the torch goes first
+        applyTorch();
+        mCamera.setExposureCompensation(level == LowLightController.Level.EXPOSURE
+                ? LowLightController.RAISED_EXPOSURE : 0);
     }
 
     /**
@@ -186,7 +455,7 @@ public class QRCodeReaderView extends SurfaceView
      * @param cameraId google.zxing.client.android.android.com.google.zxing.client.android.camera ID of the google.zxing.client.android.android.com.google.zxing.client.android.camera to use. A negative value means "no preference".
      */
     public void setPreviewCameraId(int cameraId) {
-        mCameraManager.setPreviewCameraId(cameraId);
+        mCamera.setPreviewCameraId(cameraId);
     }
 
     /**
@@ -207,31 +476,29 @@ public class QRCodeReaderView extends SurfaceView
     public void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
-        if (decodeFrameTask != null) {
-            decodeFrameTask.cancel(true);
-            decodeFrameTask = null;
-        }
+        mFramePipeline.stop();
+        // Prepared but never shown, or a prepare still queued, the thread ends after the close
+        mCamera.close();
+        mCamera.release();
     }
 
     /****************************************************
-     * SurfaceHolder.Callback,Camera.PreviewCallback
+     * SurfaceHolder.Callback
      ****************************************************/
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
 
-        try {
-            // Indicate google.zxing.client.android.android.com.google.zxing.client.android.camera, our View dimensions
-            mCameraManager.openDriver(holder, this.getWidth(), this.getHeight());
-        } catch (IOException | RuntimeException e) {
-            mCameraManager.closeDriver();
-        }
+        // Indicate google.zxing.client.android.android.com.google.zxing.client.android.camera, our View dimensions
+        // Queued to the camera thread, mOpenListener follows once it is open
+        mCamera.open(holder, this.getWidth(), this.getHeight());
 
+        updateDecodeConstraints();
         try {
-            mQRCodeReader = new QRCodeReader();
-            mCameraManager.startPreview();
+            mFramePipeline.start();
+            mCamera.startPreview();
         } catch (Exception e) {
-            mCameraManager.closeDriver();
+            mCamera.close();
         }
     }
 
@@ -242,41 +509,213 @@ public class QRCodeReaderView extends SurfaceView
             return;
         }
 
-        if (mCameraManager.getPreviewSize() == null) {
+        // Picked up by mOpenListener otherwise
+        if (!mCameraOpened || getFrameSize() == null) {
             return;
         }
 
-        mPreviewWidth = mCameraManager.getPreviewSize().x;
-        mPreviewHeight = mCameraManager.getPreviewSize().y;
+        updateFramingRect();
 
-        mCameraManager.stopPreview();
+        mCamera.stopPreview();
 
         // Fix the google.zxing.client.android.android.com.google.zxing.client.android.camera sensor rotation
-        mCameraManager.setPreviewCallback(this);
-        mCameraManager.setDisplayOrientation(getCameraDisplayOrientation());
+        mCamera.setFrameCallback(mFrameCallback);
+        mCamera.setDisplayOrientation(getCameraDisplayOrientation());
 
-        mCameraManager.startPreview();
+        mCamera.startPreview();
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
 
-        mCameraManager.setPreviewCallback(null);
-        mCameraManager.stopPreview();
-        mCameraManager.closeDriver();
+        mCameraOpened = false;
+        saveDecodeCost();
+        // The camera forgets the light it was given when it closes
+        mFramePipeline.getLightController().reset();
+        mLightLevel = LowLightController.Level.NORMAL;
+        mCamera.setFrameCallback(null);
+        mCamera.stopPreview();
+        mFramePipeline.stop();
+        mCamera.close();
     }
 
-    // Called when google.zxing.client.android.android.com.google.zxing.client.android.camera take a frame
-    @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        if (!mQrDecodingEnabled || decodeFrameTask != null
-                && (decodeFrameTask.getStatus() == AsyncTask.Status.RUNNING
-                || decodeFrameTask.getStatus() == AsyncTask.Status.PENDING)) {
+    private final AsyncCameraBackend.OpenListener mOpenListener =
+            new AsyncCameraBackend.OpenListener() {
+                @Override
+                public void onCameraOpened() {
+                    if (getHolder().getSurface() == null
+                            || !getHolder().getSurface().isValid()) {
+                        return;
+                    }
+                    mCameraOpened = true;
+                    applyTorch();
+                    updateFramingRect();
+                    mCamera.setDisplayOrientation(getCameraDisplayOrientation());
+                }
+            };
+
+    // Called on the camera thread when google.zxing.client.android.android.com.google.zxing.client.android.camera take a frame
+    private final FrameSource.FrameCallback mFrameCallback = new FrameSource.FrameCallback() {
+        @Override
+        public void onFrame(Frame frame, FrameSource source) {
+            logMetrics();
+            mFramePipeline.onFrame(frame, source);
+        }
+    };
+
+    // Called on the decode thread when a code is seen but does not decode, or when the part of
+    // the frame codes are looked for moves
+    private final FramePipeline.FocusListener mFocusListener = new FramePipeline.FocusListener() {
+        @Override
+        public void onFocusNeeded() {
+            mCamera.forceAutoFocus();
+        }
+
+        @Override
+        public void onFocusAreaChanged(FramePipeline.Crop area) {
+            mCamera.setFocusArea(area == null ? null : new Rect(area.getLeft(), area.getTop(),
+                    area.getLeft() + area.getWidth(), area.getTop() + area.getHeight()));
+        }
+    };
+
+    // Called on the decode thread when the light level changes
+    private final LowLightController.Listener mLightListener = new LowLightController.Listener() {
+        @Override
+        public void onLightLevelChanged(final LowLightController.Level level, final int mean,
+                                        final int contrast) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    // Reset or disabled since
+                    if (mFramePipeline.getLightController().getLevel() != level) {
+                        return;
+                    }
+                    applyLightLevel(level);
+                    if (mOnLightLevelChangedListener != null) {
+                        mOnLightLevelChangedListener.onLightLevelChanged(level, mean, contrast);
+                    }
+                }
+            });
+        }
+    };
+
+    // Called on the decode thread when codes were found
+    private final FramePipeline.Listener mResultListener = new FramePipeline.Listener() {
+        @Override
+        public void onResults(final Result[] results) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    // The camera closed since, the frame size to map the points from is gone
+                    Point frameSize = mCameraOpened ? getFrameSize() : null;
+                    if (frameSize == null) {
+                        return;
+                    }
+                    if (mOnQRCodeReadListener != null) {
+                        // Transform resultPoints to View coordinates
+                        DecodeMetrics metrics = mFramePipeline.getMetrics();
+                        long start = System.nanoTime();
+                        final PointF[][] transformedPoints = new PointF[results.length][];
+                        for (int i = 0; i < results.length; i++) {
+                            transformedPoints[i] = transformToViewCoordinates(
+                                    results[i].getResultPoints(), frameSize);
+                        }
+                        long transformed = System.nanoTime();
+                        metrics.record(DecodeMetrics.Stage.TRANSFORM, transformed - start);
+                        mOnQRCodeReadListener.onQRCodeRead(results, transformedPoints);
+                        metrics.record(DecodeMetrics.Stage.DISPATCH,
+                                System.nanoTime() - transformed);
+                    }
+                }
+            });
+        }
+    };
+
+    private void logMetrics() {
+        if (!mLoggingEnabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - mLastLogAt >= LOG_INTERVAL_NANOS) {
+            mLastLogAt = now;
+            Log.d(TAG, mFramePipeline.getMetrics().toString());
+        }
+    }
+
+    /**
+     * Constrains the decode rate on battery saver, low battery or a low memory device.
+     */
+    private void updateDecodeConstraints() {
+        Context context = getContext();
+        boolean constrained = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            ActivityManager activityManager =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            constrained = activityManager != null && activityManager.isLowRamDevice();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            constrained |= powerManager != null && powerManager.isPowerSaveMode();
+        }
+        // Sticky broadcast, no receiver is registered
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            constrained |= !charging && level >= 0 && scale > 0
+                    && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        }
+        mFramePipeline.getGovernor().setConstrained(constrained);
+    }
+
+    /**
+     * Maps the scan window to preview coordinates, once both the view and the preview size
+     * are known.
+     */
+    private void updateFramingRect() {
+        // The camera may hold its lock while it opens
+        if (mCamera == null || !mCameraOpened) {
+            return;
+        }
+        Point cameraPreviewSize = getFrameSize();
+        if (mScanWindow == null || cameraPreviewSize == null || getWidth() == 0
+                || getHeight() == 0) {
+            mFramePipeline.setCrop(null);
+            return;
+        }
+        int orientationDegrees = getCameraDisplayOrientation();
+        Orientation orientation =
+                orientationDegrees == 90 || orientationDegrees == 270 ? Orientation.PORTRAIT
+                        : Orientation.LANDSCAPE;
+        boolean isMirrorCamera = mCamera.isFrontFacing();
+        Rect framingRect = mQrToViewPointTransformer.toPreviewRect(mScanWindow, isMirrorCamera,
+                orientation, new Point(getWidth(), getHeight()), cameraPreviewSize);
+        mFramePipeline.setCrop(framingRect == null ? null : new FramePipeline.Crop(
+                framingRect.left, framingRect.top, framingRect.width(), framingRect.height()));
+    }
+
+    /**
+     * Keeps what a decode cost per frame pixel in this session, the next open picks the frame
+     * size from it.
+     */
+    private void saveDecodeCost() {
+        Point frameSize = getFrameSize();
+        double latencyMillis = getDecodeGovernor().getLatencyMillis();
+        if (frameSize == null || latencyMillis <= 0) {
             return;
         }
+        mProfileStore.setDecodeCost(Math.round(
+                latencyMillis * 1000000 / ((long) frameSize.x * frameSize.y)));
+    }
 
-        decodeFrameTask = new DecodeFrameTask(this, decodeHints);
-        decodeFrameTask.execute(data);
+    /**
+     * @return the size of the frames, in sensor orientation, or null before the camera is open
+     */
+    private Point getFrameSize() {
+        int width = mCamera.getFrameWidth();
+        int height = mCamera.getFrameHeight();
+        return width == 0 || height == 0 ? null : new Point(width, height);
     }
 
     /**
@@ -301,11 +740,8 @@ public class QRCodeReaderView extends SurfaceView
     /**
      * Fix for the google.zxing.client.android.android.com.google.zxing.client.android.camera Sensor on some devices (ex.: Nexus 5x)
      */
-    @SuppressWarnings("deprecation")
     private int getCameraDisplayOrientation() {
 
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        getCameraInfo(mCameraManager.getPreviewCameraId(), info);
         WindowManager windowManager =
                 (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
         int rotation = windowManager.getDefaultDisplay().getRotation();
@@ -328,102 +764,35 @@ public class QRCodeReaderView extends SurfaceView
         }
 
         int result;
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            result = (info.orientation + degrees) % 360;
+        int sensorOrientation = mCamera.getSensorOrientation();
+        if (mCamera.isFrontFacing()) {
+            result = (sensorOrientation + degrees) % 360;
             result = (360 - result) % 360;  // compensate the mirror
         } else {  // back-facing
-            result = (info.orientation - degrees + 360) % 360;
+            result = (sensorOrientation - degrees + 360) % 360;
         }
         return result;
     }
 
-    private static class DecodeFrameTask extends AsyncTask<byte[], Void, Result> {
-
-        private final WeakReference<QRCodeReaderView> viewRef;
-        private final WeakReference<Map<DecodeHintType, Object>> hintsRef;
-        private final QRToViewPointTransformer qrToViewPointTransformer =
-                new QRToViewPointTransformer();
-
-        DecodeFrameTask(QRCodeReaderView view, Map<DecodeHintType, Object> hints) {
-            viewRef = new WeakReference<>(view);
-            hintsRef = new WeakReference<>(hints);
-        }
-
-        @Override
-        protected Result doInBackground(byte[]... params) {
-            final QRCodeReaderView view = viewRef.get();
-            if (view == null) {
-                return null;
-            }
-
-            final PlanarYUVLuminanceSource source =
-                    view.mCameraManager.buildLuminanceSource(params[0], view.mPreviewWidth,
-                            view.mPreviewHeight);
-
-            final HybridBinarizer hybBin = new HybridBinarizer(source);
-            final BinaryBitmap bitmap = new BinaryBitmap(hybBin);
-
-            try {
-                return view.mQRCodeReader.decode(bitmap, hintsRef.get());
-            } catch (ChecksumException e) {
-            } catch (NotFoundException e) {
-                MultiFormatReader multiFormatReader = new MultiFormatReader();
-                try {
-
-                    LuminanceSource invertedSource = source.invert();
-                    BinaryBitmap binaryBitmap = new BinaryBitmap(new HybridBinarizer(invertedSource));
-
-                    return multiFormatReader.decode(binaryBitmap, HINTS);
-                } catch (NotFoundException exception) {
-                    return null;
-                } finally {
-                    multiFormatReader.reset();
-                }
-            } catch (FormatException e) {
-            } finally {
-                view.mQRCodeReader.reset();
-            }
-
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Result result) {
-            super.onPostExecute(result);
-
-            final QRCodeReaderView view = viewRef.get();
-
-            // Notify we found a QRCode
-            if (view != null && result != null && view.mOnQRCodeReadListener != null) {
-                // Transform resultPoints to View coordinates
-                final PointF[] transformedPoints =
-                        transformToViewCoordinates(view, result.getResultPoints());
-                view.mOnQRCodeReadListener.onQRCodeRead(result.getText(), transformedPoints);
-            }
-        }
-
-        /**
-         * Transform result to surfaceView coordinates
-         * <p>
-         * This method is needed because coordinates are given in landscape google.zxing.client.android.android.com.google.zxing.client.android.camera coordinates when
-         * device is in portrait mode and different coordinates otherwise.
-         *
-         * @return a new PointF array with transformed points
-         */
-        private PointF[] transformToViewCoordinates(QRCodeReaderView view,
-                                                    ResultPoint[] resultPoints) {
-            int orientationDegrees = view.getCameraDisplayOrientation();
-            Orientation orientation =
-                    orientationDegrees == 90 || orientationDegrees == 270 ? Orientation.PORTRAIT
-                            : Orientation.LANDSCAPE;
-            Point viewSize = new Point(view.getWidth(), view.getHeight());
-            Point cameraPreviewSize = view.mCameraManager.getPreviewSize();
-            boolean isMirrorCamera =
-                    view.mCameraManager.getPreviewCameraId()
-                            == Camera.CameraInfo.CAMERA_FACING_FRONT;
-
-            return qrToViewPointTransformer.transform(resultPoints, isMirrorCamera, orientation,
-                    viewSize, cameraPreviewSize);
-        }
+    /**
+     * Transform result to surfaceView coordinates
+     * <p>
+     * This method is needed because coordinates are given in landscape google.zxing.client.android.android.com.google.zxing.client.android.camera coordinates when
+     * device is in portrait mode and different coordinates otherwise.
+     *
+     * @param cameraPreviewSize size of the frame the points were found in
+     * @return a new PointF array with transformed points
+     */
+    private PointF[] transformToViewCoordinates(ResultPoint[] resultPoints,
+                                                Point cameraPreviewSize) {
+        int orientationDegrees = getCameraDisplayOrientation();
+        Orientation orientation =
+                orientationDegrees == 90 || orientationDegrees == 270 ? Orientation.PORTRAIT
+                        : Orientation.LANDSCAPE;
+        Point viewSize = new Point(getWidth(), getHeight());
+        boolean isMirrorCamera = mCamera.isFrontFacing();
+
+        return mQrToViewPointTransformer.transform(resultPoints, isMirrorCamera, orientation,
+                viewSize, cameraPreviewSize);
     }
 }
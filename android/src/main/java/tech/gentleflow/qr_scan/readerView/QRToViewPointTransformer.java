@@ -2,6 +2,7 @@ package tech.gentleflow.qr_scan.readerView;
 
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 
 import com.google.zxing.ResultPoint;
 
@@ -48,4 +49,53 @@ public class QRToViewPointTransformer {
         }
         return transformedPoint;
     }
+
+    /**
+     * Inverse of {@link #transform(ResultPoint, boolean, Orientation, Point, Point)}: maps a
+     * rectangle in view coordinates to the camera preview frame.
+     *
+     * @return the rectangle in preview coordinates clipped to the frame, or null if it lies
+     * outside of the frame
+     */
+    public Rect toPreviewRect(Rect viewRect, boolean isMirrorPreview, Orientation orientation,
+                              Point viewSize, Point cameraPreviewSize) {
+        PointF a = toPreview(viewRect.left, viewRect.top, isMirrorPreview, orientation, viewSize,
+                cameraPreviewSize);
+        PointF b = toPreview(viewRect.right, viewRect.bottom, isMirrorPreview, orientation,
+                viewSize, cameraPreviewSize);
+        Rect previewRect = new Rect(
+                (int) Math.floor(Math.min(a.x, b.x)), (int) Math.floor(Math.min(a.y, b.y)),
+                (int) Math.ceil(Math.max(a.x, b.x)), (int) Math.ceil(Math.max(a.y, b.y)));
+        if (!previewRect.intersect(0, 0, cameraPreviewSize.x, cameraPreviewSize.y)) {
+            return null;
+        }
+        return previewRect;
+    }
+
+    public PointF toPreview(float viewX, float viewY, boolean isMirrorPreview,
+                            Orientation orientation, Point viewSize, Point cameraPreviewSize) {
+        float previewX = cameraPreviewSize.x;
+        float previewY = cameraPreviewSize.y;
+
+        PointF previewPoint = null;
+        float scaleX;
+        float scaleY;
+
+        if (orientation == Orientation.PORTRAIT) {
+            scaleX = viewSize.x / previewY;
+            scaleY = viewSize.y / previewX;
+            if (isMirrorPreview) {
+                viewY = viewSize.y - viewY;
+            }
+            previewPoint = new PointF(viewY / scaleY, previewY - viewX / scaleX);
+        } else if (orientation == Orientation.LANDSCAPE) {
+            scaleX = viewSize.x / previewX;
+            scaleY = viewSize.y / previewY;
+            if (isMirrorPreview) {
+                viewX = viewSize.x - viewX;
+            }
+            previewPoint = new PointF((viewSize.x - viewX) / scaleX, (viewSize.y - viewY) / scaleY);
+        }
+        return previewPoint;
+    }
 }
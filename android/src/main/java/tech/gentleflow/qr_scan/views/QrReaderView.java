@@ -3,21 +3,35 @@ package tech.gentleflow.qr_scan.views;
 import android.app.ActionBar;
 import android.content.Context;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.view.View;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.google.zxing.Result;
+import com.google.zxing.client.android.camera.CameraManager;
+import com.google.zxing.client.android.camera.PreviewBufferPool;
+
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.platform.PlatformView;
+import tech.gentleflow.qr_scan.camera.Camera2Backend;
+import tech.gentleflow.qr_scan.decode.DecodeGovernor;
+import tech.gentleflow.qr_scan.decode.DecodeOptions;
+import tech.gentleflow.qr_scan.decode.DuplicateFilter;
+import tech.gentleflow.qr_scan.decode.LowLightController;
+import tech.gentleflow.qr_scan.decode.SharpnessGate;
 import tech.gentleflow.qr_scan.readerView.QRCodeReaderView;
 
-public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeReadListener, MethodChannel.MethodCallHandler {
+public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeReadListener, MethodChannel.MethodCallHandler, LowLightController.Listener {
 
     private final MethodChannel mMethodChannel;
+    private final EventChannel mResultChannel;
+    private EventChannel.EventSink mResultSink;
     private final Context mContext;
     private Map<String, Object> mParams;
     private FlutterPlugin.FlutterPluginBinding flutterPluginBinding;
@@ -25,6 +39,19 @@ public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeRead
 
     public static String EXTRA_FOCUS_INTERVAL = "extra_focus_interval";
     public static String EXTRA_TORCH_ENABLED = "extra_torch_enabled";
+    public static String EXTRA_PREVIEW_BUFFERS = "extra_preview_buffers";
+    public static String EXTRA_SCAN_RECT = "extra_scan_rect";
+    public static String EXTRA_FORMATS = "extra_formats";
+    public static String EXTRA_EFFORT = "extra_effort";
+    public static String EXTRA_MULTIPLE = "extra_multiple";
+    public static String EXTRA_DUPLICATE_TTL = "extra_duplicate_ttl";
+    public static String EXTRA_DUPLICATE_CAPACITY = "extra_duplicate_capacity";
+    public static String EXTRA_ADAPTIVE_RATE = "extra_adaptive_rate";
+    public static String EXTRA_PYRAMID = "extra_pyramid";
+    public static String EXTRA_TRACKING = "extra_tracking";
+    public static String EXTRA_LEGACY_CAMERA = "extra_legacy_camera";
+    public static String EXTRA_AUTO_LIGHT = "extra_auto_light";
+    public static String EXTRA_SHARPNESS_GATE = "extra_sharpness_gate";
 
     public QrReaderView(Context context, FlutterPlugin.FlutterPluginBinding flutterPluginBinding, int id, Map<String, Object> params){
         this.mContext = context;
@@ -35,6 +62,9 @@ public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeRead
         int width = (int) mParams.get("width");
         int height = (int) mParams.get("height");
         _view = new QRCodeReaderView(mContext);
+        if (Boolean.TRUE.equals(mParams.get(EXTRA_LEGACY_CAMERA))) {
+            _view.setCameraBackend(new CameraManager(mContext));
+        }
         ActionBar.LayoutParams layoutParams = new ActionBar.LayoutParams(width, height);
         _view.setLayoutParams(layoutParams);
         _view.setOnQRCodeReadListener(this);
@@ -43,10 +73,44 @@ public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeRead
         int interval = mParams.containsKey(EXTRA_FOCUS_INTERVAL) ? (int) mParams.get(EXTRA_FOCUS_INTERVAL) : 2000;
         _view.setAutofocusInterval(interval);
         _view.setTorchEnabled((boolean)mParams.get(EXTRA_TORCH_ENABLED));
+        if (mParams.containsKey(EXTRA_PREVIEW_BUFFERS)) {
+            _view.setPreviewBufferCount((int) mParams.get(EXTRA_PREVIEW_BUFFERS));
+        }
+        _view.setScanWindow(toRect(mParams.get(EXTRA_SCAN_RECT)));
+        _view.setDecodeOptions(DecodeOptions.fromParams(mParams.get(EXTRA_FORMATS),
+                mParams.get(EXTRA_EFFORT), DecodeOptions.Effort.NORMAL)
+                .withMultiple(Boolean.TRUE.equals(mParams.get(EXTRA_MULTIPLE))));
+        _view.setAdaptiveDecodeRate(!Boolean.FALSE.equals(mParams.get(EXTRA_ADAPTIVE_RATE)));
+        _view.setPyramidDecoding(Boolean.TRUE.equals(mParams.get(EXTRA_PYRAMID)));
+        _view.setTracking(Boolean.TRUE.equals(mParams.get(EXTRA_TRACKING)));
+        _view.setLowLightBoost(Boolean.TRUE.equals(mParams.get(EXTRA_AUTO_LIGHT)));
+        _view.setOnLightLevelChangedListener(this);
+        _view.setSharpnessGate(Boolean.TRUE.equals(mParams.get(EXTRA_SHARPNESS_GATE)));
+        if (mParams.get(EXTRA_DUPLICATE_TTL) instanceof Number) {
+            int capacity = mParams.get(EXTRA_DUPLICATE_CAPACITY) instanceof Number
+                    ? ((Number) mParams.get(EXTRA_DUPLICATE_CAPACITY)).intValue()
+                    : DuplicateFilter.DEFAULT_CAPACITY;
+            _view.setDuplicateFilter(capacity, ((Number) mParams.get(EXTRA_DUPLICATE_TTL)).longValue());
+        }
+        // 在路由动画期间于相机线程预先打开相机
+        _view.prepareCamera(width, height);
 
         // 操作监听
         mMethodChannel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), "tech.gentleflow.qr_scan.reader_view_" + id);
         mMethodChannel.setMethodCallHandler(this);
+        // 识别结果以二进制消息推送，见 ResultMessage
+        mResultChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), "tech.gentleflow.qr_scan.reader_view_" + id + "/results");
+        mResultChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                mResultSink = events;
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                mResultSink = null;
+            }
+        });
     }
 
     @Override
@@ -56,26 +120,131 @@ public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeRead
 
     @Override
     public void dispose() {
+        // 相机在创建视图时就已打开，这里停止扫描并关闭相机
+        _view.stopScan();
+        _view.closeCamera();
+        mMethodChannel.setMethodCallHandler(null);
+        mResultChannel.setStreamHandler(null);
+        mResultSink = null;
         _view = null;
         mParams = null;
         flutterPluginBinding = null;
     }
 
     @Override
-    public void onQRCodeRead(String text, PointF[] points) {
-        HashMap<String, Object> rest = new HashMap<String, Object>();
-        rest.put("text", text);
-        ArrayList<String> poi = new ArrayList<String>();
-        for (PointF point : points) {
-            poi.add(point.x + "," + point.y);
+    public void onQRCodeRead(Result[] results, PointF[][] points) {
+        if (mResultSink != null) {
+            mResultSink.success(ResultMessage.encode(results, points));
+        }
+    }
+
+    @Override
+    public void onLightLevelChanged(LowLightController.Level level, int mean, int contrast) {
+        // 在主线程上通知 Dart，level 为 QrLightLevel 的下标
+        HashMap<String, Object> arguments = new HashMap<String, Object>();
+        arguments.put("level", level.ordinal());
+        arguments.put("mean", mean);
+        arguments.put("contrast", contrast);
+        mMethodChannel.invokeMethod("onLightChanged", arguments);
+    }
+
+    /**
+     * @param value [left, top, right, bottom] in physical pixels of the view
+     */
+    private static Rect toRect(Object value) {
+        if (!(value instanceof List) || ((List<?>) value).size() != 4) {
+            return null;
+        }
+        List<?> ltrb = (List<?>) value;
+        return new Rect(((Number) ltrb.get(0)).intValue(), ((Number) ltrb.get(1)).intValue(),
+                ((Number) ltrb.get(2)).intValue(), ((Number) ltrb.get(3)).intValue());
+    }
+
+    private Map<String, Object> previewBufferStats() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        PreviewBufferPool pool = _view.getPreviewBufferPool();
+        if (pool != null) {
+            stats.put("delivered", pool.getDeliveredCount());
+            stats.put("recycled", pool.getRecycledCount());
+            stats.put("starved", pool.getStarvedCount());
+            stats.put("inFlight", pool.getInFlightCount());
+        }
+        return stats;
+    }
+
+    private Map<String, Object> duplicateStats() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        DuplicateFilter filter = _view.getDuplicateFilter();
+        if (filter != null) {
+            stats.put("suppressed", filter.getSuppressedCount());
+            stats.put("cached", filter.size());
+        }
+        return stats;
+    }
+
+    private Map<String, Object> decodeRate() {
+        HashMap<String, Object> rate = new HashMap<String, Object>();
+        DecodeGovernor governor = _view.getDecodeGovernor();
+        rate.put("rate", governor.getTargetRate());
+        rate.put("dutyCycle", governor.getDutyCycle());
+        rate.put("latencyMs", governor.getLatencyMillis());
+        rate.put("successRate", governor.getSuccessRate());
+        rate.put("skipRatio", governor.getSkipRatio());
+        rate.put("constrained", governor.isConstrained());
+        return rate;
+    }
+
+    private Map<String, Object> lightStats() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        LowLightController controller = _view.getLightController();
+        stats.put("enabled", controller.isEnabled());
+        stats.put("level", controller.getLevel().ordinal());
+        stats.put("mean", controller.getMean());
+        stats.put("contrast", controller.getContrast());
+        return stats;
+    }
+
+    private Map<String, Object> sharpnessStats() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        SharpnessGate gate = _view.getSharpnessGate();
+        stats.put("enabled", gate.isEnabled());
+        stats.put("threshold", gate.getThreshold());
+        stats.put("last", gate.getLastSharpness());
+        return stats;
+    }
+
+    private Map<String, Object> stats() {
+        Map<String, Object> stats = _view.getDecodeMetrics().snapshot();
+        stats.put("bufferPool", previewBufferStats());
+        stats.put("duplicates", duplicateStats());
+        stats.put("decodeRate", decodeRate());
+        stats.put("light", lightStats());
+        stats.put("sharpness", sharpnessStats());
+        stats.put("camera", _view.getCameraBackend() instanceof Camera2Backend ? "camera2" : "legacy");
+        return stats;
+    }
+
+    private void resetStats() {
+        _view.getDecodeMetrics().reset();
+        _view.getDecodeGovernor().resetCounters();
+        PreviewBufferPool pool = _view.getPreviewBufferPool();
+        if (pool != null) {
+            pool.resetCounters();
+        }
+        DuplicateFilter filter = _view.getDuplicateFilter();
+        if (filter != null) {
+            filter.resetCounters();
         }
-        rest.put("points", poi);
-        mMethodChannel.invokeMethod("onQRCodeRead", rest);
     }
 
     boolean flashlight;
     @Override
     public void onMethodCall(MethodCall methodCall, MethodChannel.Result result) {
+        if (_view == null) {
+            // 视图销毁前已发出的调用仍可能到达，此时相机已关闭
+            result.error("View disposed", null, null);
+            return;
+        }
         switch (methodCall.method) {
             case "flashlight":
                 _view.setTorchEnabled(!flashlight);
@@ -88,6 +257,33 @@ public class QrReaderView implements PlatformView, QRCodeReaderView.OnQRCodeRead
             case "stopScan":
                 _view.stopScan();
                 break;
+            case "setScanRect":
+                _view.setScanWindow(toRect(methodCall.arguments));
+                result.success(null);
+                break;
+            case "previewBufferStats":
+                result.success(previewBufferStats());
+                break;
+            case "getStats":
+                result.success(stats());
+                break;
+            case "resetStats":
+                resetStats();
+                result.success(null);
+                break;
+            case "setLoggingEnabled":
+                _view.setLoggingEnabled(Boolean.TRUE.equals(methodCall.arguments));
+                result.success(null);
+                break;
+            case "decodeRate":
+                result.success(decodeRate());
+                break;
+            case "duplicateStats":
+                result.success(duplicateStats());
+                break;
+            default:
+                result.notImplemented();
+                break;
         }
 
     }
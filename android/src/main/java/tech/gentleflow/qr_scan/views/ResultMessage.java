@@ -0,0 +1,53 @@
+package tech.gentleflow.qr_scan.views;
+
+import android.graphics.PointF;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Binary encoding of decode results sent to Dart, read back by {@code _decodeResults} in
+ * qr_scan.dart. All values are little endian:
+ * <pre>
+ * int32 resultCount
+ * per result:
+ *   int32   format (ordinal of {@link BarcodeFormat})
+ *   int32   pointCount
+ *   float32 x, y  (pointCount times, view coordinates)
+ *   int32   textLength
+ *   byte    text  (textLength bytes of UTF-8)
+ * </pre>
+ */
+final class ResultMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ResultMessage() {
+    }
+
+    static byte[] encode(Result[] results, PointF[][] points) {
+        byte[][] texts = new byte[results.length][];
+        int size = 4;
+        for (int i = 0; i < results.length; i++) {
+            texts[i] = results[i].getText().getBytes(UTF_8);
+            size += 4 + 4 + points[i].length * 8 + 4 + texts[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(results.length);
+        for (int i = 0; i < results.length; i++) {
+            buffer.putInt(results[i].getBarcodeFormat().ordinal());
+            buffer.putInt(points[i].length);
+            for (PointF point : points[i]) {
+                buffer.putFloat(point.x);
+                buffer.putFloat(point.y);
+            }
+            buffer.putInt(texts[i].length);
+            buffer.put(texts[i]);
+        }
+        return buffer.array();
+    }
+}
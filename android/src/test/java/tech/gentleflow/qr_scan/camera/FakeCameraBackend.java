@@ -0,0 +1,248 @@
+package tech.gentleflow.qr_scan.camera;
+
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
+
+import tech.gentleflow.qr_scan.frame.Frame;
+
+/**
+ * A camera without a device, for local tests of the view and the pipeline: frames are pushed
+ * with {@link #deliver(byte[])} on the calling thread and every call the view makes is recorded.
+ * Only the Android types of the signatures are touched, the surface holder may be null.
+ */
+public final class FakeCameraBackend implements CameraBackend {
+
+    private final int width;
+    private final int height;
+    private final int bufferCount;
+    private final Frame[] frames;
+    private final boolean[] lent;
+
+    private volatile FrameCallback callback;
+    private boolean open;
+    private boolean previewing;
+    private int cameraId = -1;
+    private boolean frontFacing;
+    private int sensorOrientation = 90;
+    private int displayOrientation;
+    private boolean torchEnabled;
+    private float exposureCompensation;
+    private long autofocusIntervalInMs;
+    private int focusRequests;
+    private Rect focusArea;
+    private long droppedCount;
+
+    /**
+     * @param bufferCount frames the consumer may hold at once, as the buffers of a camera
+     */
+    public FakeCameraBackend(int width, int height, int bufferCount) {
+        this.width = width;
+        this.height = height;
+        this.bufferCount = bufferCount;
+        frames = new Frame[bufferCount];
+        lent = new boolean[bufferCount];
+    }
+
+    /**
+     * Delivers a frame to the callback if the preview runs and a buffer is free. The data is
+     * copied into the buffer, so the same array can be delivered again.
+     *
+     * @param nv21 a frame of width * height * 3 / 2 bytes
+     * @return false if the frame was dropped
+     */
+    public boolean deliver(byte[] nv21) {
+        FrameCallback frameCallback = callback;
+        Frame frame = null;
+        synchronized (this) {
+            if (previewing && frameCallback != null) {
+                for (int i = 0; i < bufferCount; i++) {
+                    if (!lent[i]) {
+                        lent[i] = true;
+                        if (frames[i] == null) {
+                            frames[i] = new Frame(new byte[width * height * 3 / 2], width, height);
+                        }
+                        frame = frames[i];
+                        break;
+                    }
+                }
+            }
+            if (frame == null) {
+                droppedCount++;
+                return false;
+            }
+        }
+        System.arraycopy(nv21, 0, frame.getData(), 0, frame.getData().length);
+        frameCallback.onFrame(frame, this);
+        return true;
+    }
+
+    @Override
+    public void setFrameCallback(FrameCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public synchronized int getFrameWidth() {
+        return open ? width : 0;
+    }
+
+    @Override
+    public synchronized int getFrameHeight() {
+        return open ? height : 0;
+    }
+
+    @Override
+    public synchronized void releaseFrame(Frame frame) {
+        for (int i = 0; i < bufferCount; i++) {
+            if (frames[i] == frame) {
+                lent[i] = false;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void prepare(int viewWidth, int viewHeight) {
+        open = true;
+    }
+
+    @Override
+    public synchronized void open(SurfaceHolder holder, int viewWidth, int viewHeight) {
+        open = true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        previewing = false;
+        open = false;
+        focusArea = null;
+        exposureCompensation = 0;
+    }
+
+    @Override
+    public synchronized void startPreview() {
+        previewing = open;
+    }
+
+    @Override
+    public synchronized void stopPreview() {
+        previewing = false;
+    }
+
+    public synchronized boolean isPreviewing() {
+        return previewing;
+    }
+
+    @Override
+    public synchronized void setPreviewCameraId(int cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    @Override
+    public synchronized int getPreviewCameraId() {
+        return cameraId;
+    }
+
+    public synchronized void setFrontFacing(boolean frontFacing) {
+        this.frontFacing = frontFacing;
+    }
+
+    @Override
+    public synchronized boolean isFrontFacing() {
+        return frontFacing;
+    }
+
+    public synchronized void setSensorOrientation(int sensorOrientation) {
+        this.sensorOrientation = sensorOrientation;
+    }
+
+    @Override
+    public synchronized int getSensorOrientation() {
+        return sensorOrientation;
+    }
+
+    @Override
+    public synchronized void setDisplayOrientation(int degrees) {
+        displayOrientation = degrees;
+    }
+
+    public synchronized int getDisplayOrientation() {
+        return displayOrientation;
+    }
+
+    @Override
+    public synchronized void setTorchEnabled(boolean enabled) {
+        torchEnabled = enabled;
+    }
+
+    public synchronized boolean isTorchEnabled() {
+        return torchEnabled;
+    }
+
+    @Override
+    public synchronized void setExposureCompensation(float ev) {
+        exposureCompensation = ev;
+    }
+
+    public synchronized float getExposureCompensation() {
+        return exposureCompensation;
+    }
+
+    @Override
+    public synchronized void setAutofocusInterval(long autofocusIntervalInMs) {
+        this.autofocusIntervalInMs = autofocusIntervalInMs;
+    }
+
+    public synchronized long getAutofocusInterval() {
+        return autofocusIntervalInMs;
+    }
+
+    @Override
+    public synchronized void forceAutoFocus() {
+        focusRequests++;
+    }
+
+    /**
+     * @return how many times a focus scan was asked for
+     */
+    public synchronized int getFocusRequestCount() {
+        return focusRequests;
+    }
+
+    @Override
+    public synchronized void setFocusArea(Rect area) {
+        focusArea = area;
+    }
+
+    /**
+     * @return the last focus area, null for the whole field of view
+     */
+    public synchronized Rect getFocusArea() {
+        return focusArea;
+    }
+
+    /**
+     * @return frames delivered and not released yet
+     */
+    public synchronized int getHeldCount() {
+        int held = 0;
+        for (boolean frameLent : lent) {
+            if (frameLent) {
+                held++;
+            }
+        }
+        return held;
+    }
+
+    /**
+     * @return frames delivered while the preview was stopped or every buffer was held
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,102 @@
+package tech.gentleflow.qr_scan.decode;
+
+import com.google.zxing.Result;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import tech.gentleflow.qr_scan.frame.RecordedFrameSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a short checked-in recording through the live {@link FramePipeline}, the way the
+ * benchmark replay harness does: 10 frames without a code, then 20 frames of a QR code moving a
+ * few pixels, 160x120 NV21 at 15 fps.
+ */
+public class FramePipelineReplayTest {
+
+    private static final String CLIP = "replay_160x120.nv21.gz";
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final double FPS = 15;
+    private static final int FRAME_COUNT = 30;
+    private static final int CODE_FRAMES = 20;
+    private static final int BUFFER_COUNT = 3;
+    private static final String TEXT = "qr_scan replay";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayDecodesTheCodeWithFewDrops() throws Exception {
+        File clip = extractClip();
+        assertEquals(FRAME_COUNT, RecordedFrameSource.frameCount(clip, WIDTH, HEIGHT));
+
+        final AtomicLong resultCount = new AtomicLong();
+        final AtomicReference<String> text = new AtomicReference<>();
+        FramePipeline pipeline = new FramePipeline();
+        pipeline.setListener(new FramePipeline.Listener() {
+            @Override
+            public void onResults(Result[] results) {
+                resultCount.addAndGet(results.length);
+                text.compareAndSet(null, results[0].getText());
+            }
+        });
+        RecordedFrameSource source =
+                new RecordedFrameSource(clip, WIDTH, HEIGHT, FPS, BUFFER_COUNT, false);
+        source.setFrameCallback(pipeline);
+
+        pipeline.start();
+        pipeline.getGovernor().reset(System.nanoTime());
+        source.start();
+        try {
+            assertTrue("Replay did not finish", source.awaitFinished(30, TimeUnit.SECONDS));
+        } finally {
+            pipeline.stop();
+        }
+
+        DecodeMetrics metrics = pipeline.getMetrics();
+        long played = source.getDeliveredCount() + source.getDroppedCount();
+        long dropped = source.getDroppedCount()
+                + metrics.get(DecodeMetrics.Counter.FRAMES_SKIPPED)
+                + metrics.get(DecodeMetrics.Counter.FRAMES_REPLACED);
+        long decoded = metrics.get(DecodeMetrics.Counter.FRAMES_DECODED);
+        assertEquals(FRAME_COUNT, played);
+        assertEquals(TEXT, text.get());
+        // A small frame at 15 fps leaves the pipeline idle most of the time, the bounds only
+        // leave room for a slow or busy machine
+        assertTrue("Only " + resultCount.get() + " results", resultCount.get() >= CODE_FRAMES / 2);
+        assertTrue("Only " + decoded + " frames decoded", decoded >= FRAME_COUNT / 2);
+        assertTrue(dropped + " of " + played + " frames dropped", dropped <= played / 4);
+    }
+
+    private File extractClip() throws IOException {
+        File clip = folder.newFile("replay.nv21");
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream(CLIP));
+        OutputStream out = new FileOutputStream(clip);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        return clip;
+    }
+}
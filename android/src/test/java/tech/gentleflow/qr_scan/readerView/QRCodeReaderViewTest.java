@@ -0,0 +1,366 @@
+package tech.gentleflow.qr_scan.readerView;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.graphics.Canvas;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.os.Looper;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.ViewGroup;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tech.gentleflow.qr_scan.camera.FakeCameraBackend;
+import tech.gentleflow.qr_scan.decode.DecodeMetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives the view through a {@link FakeCameraBackend}: the camera opens and closes with the
+ * surface, frames are decoded and handed back, and the torch and focus calls reach the camera.
+ * The camera runs on the thread of its {@link tech.gentleflow.qr_scan.camera.AsyncCameraBackend}
+ * and frames are decoded on the pipeline thread, so the tests wait for what they expect while
+ * running the main looper. The view is attached to an activity, results are posted to it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class QRCodeReaderViewTest {
+
+    private static final int FRAME_WIDTH = 320;
+    private static final int FRAME_HEIGHT = 240;
+    private static final int BUFFER_COUNT = 2;
+    private static final String TEXT = "qr_scan view test";
+    private static final long TIMEOUT_MS = 5000;
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private FakeCameraBackend camera;
+    private QRCodeReaderView view;
+    private SurfaceHolder holder;
+    private final List<Result> results = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        shadowOf(activity.getPackageManager())
+                .setSystemFeature(PackageManager.FEATURE_CAMERA, true);
+        holder = new ValidSurfaceHolder();
+        view = new QRCodeReaderView(activity) {
+            @Override
+            public SurfaceHolder getHolder() {
+                // The shadow holder of a surface view has no surface, the view waits for one
+                return holder;
+            }
+        };
+        activity.setContentView(view);
+        camera = new FakeCameraBackend(FRAME_WIDTH, FRAME_HEIGHT, BUFFER_COUNT);
+        view.setCameraBackend(camera);
+        view.setOnQRCodeReadListener(new QRCodeReaderView.OnQRCodeReadListener() {
+            @Override
+            public void onQRCodeRead(Result[] read, PointF[][] points) {
+                assertEquals(read.length, points.length);
+                results.addAll(Arrays.asList(read));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        // Closes the camera and ends its thread
+        ((ViewGroup) view.getParent()).removeView(view);
+        holder.getSurface().release();
+    }
+
+    @Test
+    public void surfaceOpensAndClosesTheCamera() {
+        openCamera();
+        assertTrue(camera.isOpen());
+        assertTrue(camera.isPreviewing());
+
+        view.surfaceDestroyed(holder);
+        // Closing waits for the camera
+        assertFalse(camera.isOpen());
+        assertFalse(camera.isPreviewing());
+        assertFalse(camera.deliver(frame(true)));
+    }
+
+    @Test
+    public void framesAreDecodedAndReleased() {
+        openCamera();
+        assertTrue(camera.deliver(frame(true)));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return !results.isEmpty() && camera.getHeldCount() == 0;
+            }
+        });
+        assertEquals(TEXT, results.get(0).getText());
+
+        // Every buffer comes back, none is dropped
+        for (int i = 0; i < BUFFER_COUNT * 3; i++) {
+            assertTrue(camera.deliver(frame(false)));
+            await(new Condition() {
+                @Override
+                public boolean holds() {
+                    return camera.getHeldCount() == 0;
+                }
+            });
+        }
+        assertEquals(0, camera.getDroppedCount());
+    }
+
+    @Test
+    public void resultsAfterCloseAreDropped() {
+        openCamera();
+        assertTrue(camera.deliver(frame(true)));
+        // Without running the main looper, the result stays queued on it
+        final DecodeMetrics metrics = view.getDecodeMetrics();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (metrics.get(DecodeMetrics.Counter.CODES_FOUND) == 0
+                || shadowOf(Looper.getMainLooper()).isIdle()) {
+            assertTrue("No result queued", System.currentTimeMillis() < deadline);
+            sleep();
+        }
+        view.surfaceDestroyed(holder);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void torchFollowsTheViewAcrossOpens() {
+        view.setTorchEnabled(true);
+        openCamera();
+        assertTrue(camera.isTorchEnabled());
+
+        view.setTorchEnabled(false);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return !camera.isTorchEnabled();
+            }
+        });
+    }
+
+    @Test
+    public void focusCallsReachTheCamera() {
+        openCamera();
+        view.setAutofocusInterval(1500);
+        view.forceAutoFocus();
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return camera.getFocusRequestCount() == 1
+                        && camera.getAutofocusInterval() == 1500;
+            }
+        });
+    }
+
+    @Test
+    public void scanWindowBecomesTheFocusArea() {
+        openCamera();
+        view.setScanWindow(new Rect(60, 100, 180, 220));
+        assertTrue(camera.deliver(frame(false)));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return camera.getFocusArea() != null;
+            }
+        });
+        Rect area = camera.getFocusArea();
+        assertTrue(area + " outside the frame",
+                new Rect(0, 0, FRAME_WIDTH, FRAME_HEIGHT).contains(area));
+        assertTrue(area.width() < FRAME_WIDTH && area.height() < FRAME_HEIGHT);
+    }
+
+    @Test
+    public void codesThatDoNotDecodeRequestFocus() {
+        openCamera();
+        final byte[] blurred = frame(true);
+        damageData(blurred);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(camera.deliver(blurred));
+            await(new Condition() {
+                @Override
+                public boolean holds() {
+                    return camera.getHeldCount() == 0;
+                }
+            });
+        }
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return camera.getFocusRequestCount() == 1;
+            }
+        });
+        assertTrue(results.isEmpty());
+    }
+
+    /**
+     * Opens the camera with the surface and waits for the open listener of the view, which
+     * turns the preview to the display once the camera is open.
+     */
+    private void openCamera() {
+        view.surfaceCreated(holder);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return camera.isPreviewing() && camera.getDisplayOrientation() == 90;
+            }
+        });
+    }
+
+    /**
+     * Runs the main looper until the condition holds, the other threads run on their own.
+     */
+    private static void await(Condition condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            shadowOf(Looper.getMainLooper()).idle();
+            if (condition.holds()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out after " + TIMEOUT_MS + " ms");
+            }
+            sleep();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param code true to show a QR code in the middle of the frame, a flat gray frame otherwise
+     */
+    private static byte[] frame(boolean code) {
+        byte[] nv21 = new byte[FRAME_WIDTH * FRAME_HEIGHT * 3 / 2];
+        Arrays.fill(nv21, (byte) 128);
+        if (!code) {
+            return nv21;
+        }
+        BitMatrix matrix;
+        try {
+            matrix = new QRCodeWriter().encode(TEXT, BarcodeFormat.QR_CODE, 0, 0);
+        } catch (WriterException e) {
+            throw new AssertionError(e);
+        }
+        int module = 4;
+        int left = (FRAME_WIDTH - matrix.getWidth() * module) / 2;
+        int top = (FRAME_HEIGHT - matrix.getHeight() * module) / 2;
+        for (int y = 0; y < matrix.getHeight() * module; y++) {
+            for (int x = 0; x < matrix.getWidth() * module; x++) {
+                nv21[(top + y) * FRAME_WIDTH + left + x] =
+                        (byte) (matrix.get(x / module, y / module) ? 20 : 235);
+            }
+        }
+        return nv21;
+    }
+
+    /**
+     * Clears the bottom right of the code, the finder patterns stay but the data is lost.
+     */
+    private static void damageData(byte[] nv21) {
+        for (int y = FRAME_HEIGHT / 2; y < FRAME_HEIGHT * 3 / 4; y++) {
+            for (int x = FRAME_WIDTH / 2; x < FRAME_WIDTH * 3 / 4; x++) {
+                nv21[y * FRAME_WIDTH + x] = (byte) 235;
+            }
+        }
+    }
+
+    /**
+     * A holder whose surface stays valid, the camera never draws into it.
+     */
+    private static final class ValidSurfaceHolder implements SurfaceHolder {
+
+        private final Surface surface = new Surface(new SurfaceTexture(0));
+
+        @Override
+        public void addCallback(Callback callback) {
+        }
+
+        @Override
+        public void removeCallback(Callback callback) {
+        }
+
+        @Override
+        public boolean isCreating() {
+            return false;
+        }
+
+        @Override
+        public void setType(int type) {
+        }
+
+        @Override
+        public void setFixedSize(int width, int height) {
+        }
+
+        @Override
+        public void setSizeFromLayout() {
+        }
+
+        @Override
+        public void setFormat(int format) {
+        }
+
+        @Override
+        public void setKeepScreenOn(boolean screenOn) {
+        }
+
+        @Override
+        public Canvas lockCanvas() {
+            return null;
+        }
+
+        @Override
+        public Canvas lockCanvas(Rect dirty) {
+            return null;
+        }
+
+        @Override
+        public void unlockCanvasAndPost(Canvas canvas) {
+        }
+
+        @Override
+        public Rect getSurfaceFrame() {
+            return new Rect(0, 0, FRAME_HEIGHT, FRAME_WIDTH);
+        }
+
+        @Override
+        public Surface getSurface() {
+            return surface;
+        }
+    }
+}
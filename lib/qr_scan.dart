@@ -1,6 +1,8 @@
 
 import 'dart:async';
+import 'dart:convert';
 import 'dart:io';
+import 'dart:typed_data';
 import 'dart:ui';
 
 import 'package:flutter/foundation.dart';
@@ -8,16 +10,186 @@ import 'package:flutter/gestures.dart';
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 
+/// Barcode formats that can be looked for, Android only.
+enum QrScanFormat {
+  aztec,
+  codabar,
+  code39,
+  code93,
+  code128,
+  dataMatrix,
+  ean8,
+  ean13,
+  itf,
+  maxicode,
+  pdf417,
+  qrCode,
+  rss14,
+  rssExpanded,
+  upcA,
+  upcE,
+  upcEanExtension,
+}
+
+const Map<QrScanFormat, String> _formatNames = {
+  QrScanFormat.aztec: "AZTEC",
+  QrScanFormat.codabar: "CODABAR",
+  QrScanFormat.code39: "CODE_39",
+  QrScanFormat.code93: "CODE_93",
+  QrScanFormat.code128: "CODE_128",
+  QrScanFormat.dataMatrix: "DATA_MATRIX",
+  QrScanFormat.ean8: "EAN_8",
+  QrScanFormat.ean13: "EAN_13",
+  QrScanFormat.itf: "ITF",
+  QrScanFormat.maxicode: "MAXICODE",
+  QrScanFormat.pdf417: "PDF_417",
+  QrScanFormat.qrCode: "QR_CODE",
+  QrScanFormat.rss14: "RSS_14",
+  QrScanFormat.rssExpanded: "RSS_EXPANDED",
+  QrScanFormat.upcA: "UPC_A",
+  QrScanFormat.upcE: "UPC_E",
+  QrScanFormat.upcEanExtension: "UPC_EAN_EXTENSION",
+};
+
+/// How hard to try on each frame or image, Android only.
+enum QrScanEffort {
+  /// A single pass.
+  fast,
+
+  /// Also retries inverted images.
+  normal,
+
+  /// Also tries harder and with a second binarizer.
+  thorough,
+}
+
+/// Light added by the Android view when frames stay too dark, see [QrReaderView.autoLight].
+enum QrLightLevel {
+  /// The camera exposes the scene on its own.
+  normal,
+
+  /// Exposure compensation raised.
+  exposure,
+
+  /// Torch on.
+  torch,
+}
+
+const Map<QrScanEffort, String> _effortNames = {
+  QrScanEffort.fast: "FAST",
+  QrScanEffort.normal: "NORMAL",
+  QrScanEffort.thorough: "THOROUGH",
+};
+
+List<String> _toFormatNames(List<QrScanFormat> formats) {
+  return formats?.map((format) => _formatNames[format])?.toList();
+}
+
+/// Result of one file of [QrScan.imgScanBatch].
+class QrBatchResult {
+  /// Position of the file in the requested list.
+  final int index;
+  final String path;
+
+  /// Decoded content, null when [error] is set.
+  final String text;
+  final String error;
+
+  QrBatchResult(this.index, this.path, this.text, this.error);
+}
+
 class QrScan {
   static const MethodChannel _channel =
       const MethodChannel('tech.gentleflow.qr_scan');
+  static const EventChannel _batchChannel =
+      const EventChannel('tech.gentleflow.qr_scan/batch');
+  static Stream<dynamic> _batchEvents;
+  static int _nextBatchId = 0;
+
+  /// Android only: decodes [files] on all cores, results are emitted as each file finishes,
+  /// in completion order. Cancelling the subscription cancels the files not decoded yet.
+  static Stream<QrBatchResult> imgScanBatch(List<File> files,
+      {List<QrScanFormat> formats,
+      QrScanEffort effort = QrScanEffort.thorough}) {
+    final batchId = _nextBatchId++;
+    StreamSubscription<dynamic> subscription;
+    StreamController<QrBatchResult> controller;
+    controller = StreamController<QrBatchResult>(
+      onListen: () {
+        _batchEvents ??= _batchChannel.receiveBroadcastStream();
+        subscription = _batchEvents.listen((event) {
+          if (event["batchId"] != batchId) {
+            return;
+          }
+          if (event["done"] == true) {
+            subscription?.cancel();
+            controller.close();
+          } else {
+            controller.add(QrBatchResult(
+                event["index"], event["path"], event["text"], event["error"]));
+          }
+        });
+        _channel.invokeMethod("imgQrCodeBatch", {
+          "batchId": batchId,
+          "files": files.map((file) => file.path).toList(),
+          "formats": _toFormatNames(formats),
+          "effort": _effortNames[effort],
+        }).catchError((e) {
+          controller.addError(e);
+          subscription?.cancel();
+          controller.close();
+        });
+      },
+      onCancel: () {
+        subscription?.cancel();
+        return _channel.invokeMethod("cancelImgQrCodeBatch", {"batchId": batchId});
+      },
+    );
+    return controller.stream;
+  }
 
-  static Future<String> imgScan(File file) async {
+  /// Android only: every code found in [file], with corner points in pixels of the decoded
+  /// image. Empty when nothing was found.
+  static Future<List<QrScanResult>> imgScanAll(File file,
+      {List<QrScanFormat> formats,
+      QrScanEffort effort = QrScanEffort.thorough}) async {
+    if (file?.existsSync() == false) {
+      return [];
+    }
+    try {
+      final List<dynamic> rest = await _channel.invokeMethod("imgQrCodes", {
+        "file": file.path,
+        "formats": _toFormatNames(formats),
+        "effort": _effortNames[effort],
+      });
+      return rest
+          .map((result) => QrScanResult(result["format"], result["text"],
+              Float32List.fromList(List<double>.from(result["points"]))))
+          .toList();
+    } catch (e) {
+      print(e);
+      return [];
+    }
+  }
+
+  /// [formats] defaults to all formats.
+  ///
+  /// With [parallel] the decoding passes race on all cores of an Android device and the
+  /// image orientation is corrected from its EXIF data.
+  static Future<String> imgScan(File file,
+      {List<QrScanFormat> formats,
+      QrScanEffort effort = QrScanEffort.thorough,
+      bool parallel = false}) async {
     if (file?.existsSync() == false) {
       return null;
     }
     try {
-      final rest = await _channel.invokeMethod("imgQrCode", {"file": file.path});
+      final rest = await _channel.invokeMethod("imgQrCode", {
+        "file": file.path,
+        "formats": _toFormatNames(formats),
+        "effort": _effortNames[effort],
+        "parallel": parallel,
+      });
       return rest;
     } catch (e) {
       print(e);
@@ -34,6 +206,60 @@ class QrReaderView extends StatefulWidget {
   final double width;
   final double height;
 
+  /// Number of reusable preview buffers on Android, 0 allocates a new buffer per frame.
+  final int previewBufferCount;
+
+  /// Android only: area of the view, in logical pixels, codes are searched in.
+  /// Defaults to the whole view.
+  final Rect scanRect;
+
+  /// Formats to look for, defaults to all formats.
+  final List<QrScanFormat> formats;
+
+  /// Android only: effort per frame, defaults to [QrScanEffort.normal]. Missed frames are not
+  /// tried harder unless [QrScanEffort.thorough] is set.
+  final QrScanEffort effort;
+
+  /// Android only: report every code of a frame instead of the first one found, see
+  /// [QrReaderViewController.startScan].
+  final bool multipleCodes;
+
+  /// Android only: a code is reported once and then suppressed for this long while it stays
+  /// in view, null reports it on every frame. Restarted by [QrReaderViewController.startScan].
+  final Duration duplicateTtl;
+
+  /// Android only: how many distinct codes [duplicateTtl] remembers.
+  final int duplicateCapacity;
+
+  /// Android only: decode at full rate while codes are in view and slow down once the scene
+  /// stays empty, or on a device low on battery or memory. See
+  /// [QrReaderViewController.getDecodeRate].
+  final bool adaptiveDecodeRate;
+
+  /// Android only: search high resolution previews at half or quarter resolution first, and
+  /// at full resolution only when a code is seen but not read. Faster on large previews, may
+  /// miss small codes for a few frames.
+  final bool pyramidDecoding;
+
+  /// Android only: once a code is read, search only around it in the next frames, for
+  /// continuous scanning of a moving code. Ignored with [multipleCodes].
+  final bool trackingMode;
+
+  /// Android only: read frames with the deprecated Camera API even where Camera2 is available.
+  /// By default Camera2 is used when the device supports more than its legacy level.
+  final bool useLegacyCamera;
+
+  /// Android only: raise the exposure, then turn the torch on, while frames stay too dark or
+  /// too flat to read codes, and back off once they are bright again. A torch turned on with
+  /// [torchEnabled] or [QrReaderViewController.setFlashlight] stays on. See
+  /// [QrReaderViewController.onLightChanged].
+  final bool autoLight;
+
+  /// Android only: skip frames too blurred to read, e.g. while the phone moves or the lens
+  /// refocuses, so the next sharp frame is decoded sooner. The threshold is learnt from the
+  /// frames that decode, see `sharpness` in [QrReaderViewController.getStats].
+  final bool sharpnessGate;
+
   QrReaderView({
     Key key,
     this.width,
@@ -41,6 +267,19 @@ class QrReaderView extends StatefulWidget {
     this.callback,
     this.autoFocusIntervalInMs = 500,
     this.torchEnabled = false,
+    this.previewBufferCount = 3,
+    this.scanRect,
+    this.formats,
+    this.effort = QrScanEffort.normal,
+    this.multipleCodes = false,
+    this.duplicateTtl,
+    this.duplicateCapacity = 16,
+    this.adaptiveDecodeRate = true,
+    this.pyramidDecoding = false,
+    this.trackingMode = false,
+    this.useLegacyCamera = false,
+    this.autoLight = false,
+    this.sharpnessGate = false,
   }) : super(key: key);
 
   @override
@@ -48,6 +287,8 @@ class QrReaderView extends StatefulWidget {
 }
 
 class _QrReaderViewState extends State<QrReaderView> {
+  QrReaderViewController _controller;
+
   @override
   void initState() {
     super.initState();
@@ -63,6 +304,19 @@ class _QrReaderViewState extends State<QrReaderView> {
           "height": (widget.height * window.devicePixelRatio).floor(),
           "extra_focus_interval": widget.autoFocusIntervalInMs,
           "extra_torch_enabled": widget.torchEnabled,
+          "extra_preview_buffers": widget.previewBufferCount,
+          "extra_scan_rect": _toPhysicalRect(widget.scanRect),
+          "extra_formats": _toFormatNames(widget.formats),
+          "extra_effort": _effortNames[widget.effort],
+          "extra_multiple": widget.multipleCodes,
+          "extra_duplicate_ttl": widget.duplicateTtl?.inMilliseconds,
+          "extra_duplicate_capacity": widget.duplicateCapacity,
+          "extra_adaptive_rate": widget.adaptiveDecodeRate,
+          "extra_pyramid": widget.pyramidDecoding,
+          "extra_tracking": widget.trackingMode,
+          "extra_legacy_camera": widget.useLegacyCamera,
+          "extra_auto_light": widget.autoLight,
+          "extra_sharpness_gate": widget.sharpnessGate,
         },
         creationParamsCodec: const StandardMessageCodec(),
         onPlatformViewCreated: _onPlatformViewCreated,
@@ -91,27 +345,126 @@ class _QrReaderViewState extends State<QrReaderView> {
   }
 
   void _onPlatformViewCreated(int id) {
-    widget.callback(QrReaderViewController(id));
+    _controller = QrReaderViewController(id);
+    widget.callback(_controller);
   }
 
   @override
   void dispose() {
+    _controller?._dispose();
     super.dispose();
   }
 }
 
+List<int> _toPhysicalRect(Rect rect) {
+  if (rect == null) {
+    return null;
+  }
+  final ratio = window.devicePixelRatio;
+  return [
+    (rect.left * ratio).floor(),
+    (rect.top * ratio).floor(),
+    (rect.right * ratio).ceil(),
+    (rect.bottom * ratio).ceil(),
+  ];
+}
+
 typedef ReadChangeBack = void Function(String, List<Offset>);
+typedef ReadResultsBack = void Function(List<QrScanResult>);
+
+/// [mean] luminance and [contrast] of the frame that changed the level, 0 to 255.
+typedef LightChangeBack = void Function(QrLightLevel level, int mean, int contrast);
+
+/// A code found by the live scanner or [QrScan.imgScanAll].
+class QrScanResult {
+  /// Index into [QrScanFormat.values], null when not reported by the platform.
+  final int formatCode;
+  final String text;
+
+  /// Corner points as x, y pairs, in view coordinates for the live scanner.
+  final Float32List points;
+
+  QrScanResult(this.formatCode, this.text, this.points);
+
+  QrScanFormat get format =>
+      formatCode != null && formatCode < QrScanFormat.values.length
+          ? QrScanFormat.values[formatCode]
+          : null;
+
+  List<Offset> get offsets {
+    final offsets = List<Offset>();
+    for (int i = 0; i + 1 < points.length; i += 2) {
+      offsets.add(Offset(points[i], points[i + 1]));
+    }
+    return offsets;
+  }
+}
+
+/// Reads the binary result message of the Android view, see ResultMessage.java.
+List<QrScanResult> _decodeResults(Uint8List bytes) {
+  final data = ByteData.view(bytes.buffer, bytes.offsetInBytes, bytes.lengthInBytes);
+  int offset = 0;
+  int readInt() {
+    final value = data.getInt32(offset, Endian.little);
+    offset += 4;
+    return value;
+  }
+
+  final results = List<QrScanResult>();
+  final count = readInt();
+  for (int i = 0; i < count; i++) {
+    final formatCode = readInt();
+    final points = Float32List(readInt() * 2);
+    for (int j = 0; j < points.length; j++) {
+      points[j] = data.getFloat32(offset, Endian.little);
+      offset += 4;
+    }
+    final textLength = readInt();
+    final text = utf8.decode(
+        Uint8List.view(bytes.buffer, bytes.offsetInBytes + offset, textLength));
+    offset += textLength;
+    results.add(QrScanResult(formatCode, text, points));
+  }
+  return results;
+}
 
 class QrReaderViewController {
   final int id;
   final MethodChannel _channel;
+  StreamSubscription<dynamic> _resultSubscription;
+
   QrReaderViewController(this.id) : _channel = MethodChannel('tech.gentleflow.qr_scan.reader_view_$id') {
     _channel.setMethodCallHandler(_handleMessages);
+    if (defaultTargetPlatform == TargetPlatform.android) {
+      _resultSubscription = EventChannel('tech.gentleflow.qr_scan.reader_view_$id/results')
+          .receiveBroadcastStream()
+          .listen((message) => _onResults(_decodeResults(message)));
+    }
   }
   ReadChangeBack onQrBack;
+  ReadResultsBack onResults;
+
+  /// Android only: called when [QrReaderView.autoLight] changes the light level.
+  LightChangeBack onLightChanged;
+
+  void _onResults(List<QrScanResult> results) {
+    if (onResults != null) {
+      onResults(results);
+      return;
+    }
+    for (final result in results) {
+      this.onQrBack?.call(result.text, result.offsets);
+    }
+  }
+
+  void _dispose() {
+    _resultSubscription?.cancel();
+    _resultSubscription = null;
+  }
 
   Future _handleMessages(MethodCall call) async {
     switch (call.method) {
+      // iOS, Android sends results on the binary result channel
       case "onQRCodeRead":
         final points = List<Offset>();
         if (call.arguments.containsKey("points")) {
@@ -124,6 +477,10 @@ class QrReaderViewController {
 
         this.onQrBack(call.arguments["text"], points);
         break;
+      case "onLightChanged":
+        this.onLightChanged?.call(QrLightLevel.values[call.arguments["level"]],
+            call.arguments["mean"], call.arguments["contrast"]);
+        break;
     }
   }
 
@@ -131,13 +488,63 @@ class QrReaderViewController {
     return _channel.invokeMethod("flashlight");
   }
 
-  Future startScan(ReadChangeBack onQrBack) async {
+  /// [onResults], Android only, receives all codes of a frame in one call instead of
+  /// [onQrBack] being called once per code.
+  Future startScan(ReadChangeBack onQrBack, {ReadResultsBack onResults}) async {
     this.onQrBack = onQrBack;
+    this.onResults = onResults;
     return _channel.invokeMethod("startScan");
   }
 
   Future stopScan() async {
     return _channel.invokeMethod("stopScan");
   }
+
+  /// Android only: restricts decoding to [rect] of the view, null decodes the whole view.
+  Future setScanRect(Rect rect) async {
+    return _channel.invokeMethod("setScanRect", _toPhysicalRect(rect));
+  }
+
+  /// Android only: pipeline counters under `frames` (received, disabled, skipped, replaced,
+  /// blurred, decoded, coarse, tracked, escalated, focus, area, light, found, suppressed) and
+  /// latencies under `stages` (sharpness, luminance, binarize, detect, decode, fallback,
+  /// transform, dispatch), each with count, totalUs, maxUs, p50Us, p90Us, p99Us and log2
+  /// microsecond `buckets`. Also holds `bufferPool`, `duplicates`, `decodeRate`, `light`
+  /// (enabled, level as an index into [QrLightLevel.values], mean, contrast), `sharpness`
+  /// (enabled, threshold, last) and `camera` ("camera2" or "legacy").
+  Future<Map<String, dynamic>> getStats() async {
+    final stats = await _channel.invokeMethod("getStats");
+    return Map<String, dynamic>.from(stats ?? {});
+  }
+
+  /// Android only: restarts every counter and histogram of [getStats].
+  Future resetStats() async {
+    return _channel.invokeMethod("resetStats");
+  }
+
+  /// Android only: logs a summary of [getStats] every few seconds while scanning.
+  Future setLoggingEnabled(bool enabled) async {
+    return _channel.invokeMethod("setLoggingEnabled", enabled);
+  }
+
+  /// Android only: decodes per second aimed at (`rate`), share of time spent decoding
+  /// (`dutyCycle`), average `latencyMs`, `successRate`, share of skipped frames (`skipRatio`) and
+  /// whether the device is `constrained`.
+  Future<Map<String, dynamic>> getDecodeRate() async {
+    final rate = await _channel.invokeMethod("decodeRate");
+    return Map<String, dynamic>.from(rate ?? {});
+  }
+
+  /// Android only: suppressed repeats and cached codes of [QrReaderView.duplicateTtl].
+  Future<Map<String, dynamic>> getDuplicateStats() async {
+    final stats = await _channel.invokeMethod("duplicateStats");
+    return Map<String, dynamic>.from(stats ?? {});
+  }
+
+  /// Android only: delivered, recycled, starved and in flight counts of the preview buffers.
+  Future<Map<String, dynamic>> getPreviewBufferStats() async {
+    final stats = await _channel.invokeMethod("previewBufferStats");
+    return Map<String, dynamic>.from(stats ?? {});
+  }
 }
 